@@ -0,0 +1,247 @@
+package ch.epfl.blchatel.leveleditor;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The FillEngine repeats a brush over a whole LayerImage (the FILL tool) or over a region of it (the BUCKET tool)
+ * - a region is the set of cells connected to a seed cell and of the same behavior, found by a scanline flood fill
+ * - the tiled layers share the brush tiles instead of copying pixels (see TiledLayer.fill)
+ * - the behavior rows are built once per brush row and then copied row by row into the raster
+ * - the level is split into bands of rows processed in parallel on the common fork-join pool
+ */
+public final class FillEngine {
+
+    /// Number of cell rows under which a band is not split anymore
+    private final static int BAND_ROWS = 16;
+
+    private FillEngine() {}
+
+    /**
+     * Fill (source over) the selected layers of the image with the brush repeated from the given cell
+     * @param image (LayerImage): the filled image (not null)
+     * @param brush (LayerImage): the repeated brush (not null)
+     * @param cellX (int): x-coordinate of a cell where the top-left cell of the brush is drawn
+     * @param cellY (int): y-coordinate of a cell where the top-left cell of the brush is drawn
+     * @param background (boolean): true to fill the background layer
+     * @param foreground (boolean): true to fill the foreground layer (if both image and brush have one)
+     * @param behavior (boolean): true to fill the behavior layer
+     */
+    public static void fill(LayerImage image, LayerImage brush, int cellX, int cellY,
+                            boolean background, boolean foreground, boolean behavior) {
+
+        Task task = new Task(image, brush, cellX, cellY, 0, image.cellHeight,
+                background, foreground && image.foreground != null && brush.foreground != null,
+                behavior ? new BehaviorPattern(brush.behavior, cellX, image.cellWidth) : null, null);
+        ForkJoinPool.commonPool().invoke(task);
+    }
+
+    /**
+     * Fill (source over) the selected layers of the image with the brush repeated from the given cell, but only
+     * into the region of the seed cell, i.e. the cells 4-connected to it and having the same behavior color
+     * Notice : the region is found before anything is drawn, so filling the behavior does not change it
+     * @param image (LayerImage): the filled image (not null)
+     * @param brush (LayerImage): the repeated brush (not null)
+     * @param cellX (int): x-coordinate of a cell where the top-left cell of the brush is drawn
+     * @param cellY (int): y-coordinate of a cell where the top-left cell of the brush is drawn
+     * @param seedX (int): x-coordinate of the seed cell
+     * @param seedY (int): y-coordinate of the seed cell
+     * @param background (boolean): true to fill the background layer
+     * @param foreground (boolean): true to fill the foreground layer (if both image and brush have one)
+     * @param behavior (boolean): true to fill the behavior layer
+     * @return (Rectangle): the bounds of the region in cells, null if the seed is outside the image
+     */
+    public static Rectangle fillRegion(LayerImage image, LayerImage brush, int cellX, int cellY, int seedX, int seedY,
+                                       boolean background, boolean foreground, boolean behavior) {
+
+        if (seedX < 0 || seedY < 0 || seedX >= image.cellWidth || seedY >= image.cellHeight)
+            return null;
+
+        BitSet region = new BitSet(image.cellWidth * image.cellHeight);
+        Rectangle bounds = findRegion(image.behavior, seedX, seedY, region);
+
+        Task task = new Task(image, brush, cellX, cellY, bounds.y, bounds.y + bounds.height,
+                background, foreground && image.foreground != null && brush.foreground != null,
+                behavior ? new BehaviorPattern(brush.behavior, cellX, image.cellWidth) : null, region);
+        ForkJoinPool.commonPool().invoke(task);
+        return bounds;
+    }
+
+    /**
+     * Scanline flood fill: mark the cells 4-connected to the seed and of the same behavior color
+     * Notice : each run of cells is marked at once, and only the first cell of each adjacent run is pushed
+     * @param behavior (BufferedImage): the behavior layer (one pixel per cell, not null)
+     * @param seedX (int): x-coordinate of the seed cell
+     * @param seedY (int): y-coordinate of the seed cell
+     * @param region (BitSet): the marked cells in row-major order, written (not null)
+     * @return (Rectangle): the bounds of the region in cells
+     */
+    private static Rectangle findRegion(BufferedImage behavior, int seedX, int seedY, BitSet region) {
+
+        int width = behavior.getWidth();
+        int height = behavior.getHeight();
+        int[] colors = behavior.getRGB(0, 0, width, height, null, 0, width);
+        int target = colors[seedY * width + seedX];
+
+        int minX = seedX, maxX = seedX, minY = seedY, maxY = seedY;
+        int[] stack = new int[64];
+        int size = 0;
+        stack[size++] = seedX;
+        stack[size++] = seedY;
+
+        while (size > 0) {
+            int y = stack[--size];
+            int x = stack[--size];
+            int row = y * width;
+            if (region.get(row + x))
+                continue;
+
+            // Extend the run of the popped cell to the left and to the right, and mark it
+            int left = x;
+            while (left > 0 && colors[row + left - 1] == target && !region.get(row + left - 1))
+                left--;
+            int right = x;
+            while (right < width - 1 && colors[row + right + 1] == target && !region.get(row + right + 1))
+                right++;
+            region.set(row + left, row + right + 1);
+
+            minX = Math.min(minX, left);
+            maxX = Math.max(maxX, right);
+            minY = Math.min(minY, y);
+            maxY = Math.max(maxY, y);
+
+            // Push the first cell of each run above and below
+            for (int ny = y - 1; ny <= y + 1; ny += 2) {
+                if (ny < 0 || ny >= height)
+                    continue;
+                int nRow = ny * width;
+                boolean inRun = false;
+                for (int nx = left; nx <= right; nx++) {
+                    boolean matches = colors[nRow + nx] == target && !region.get(nRow + nx);
+                    if (matches && !inRun) {
+                        if (size + 2 > stack.length)
+                            stack = Arrays.copyOf(stack, stack.length * 2);
+                        stack[size++] = nx;
+                        stack[size++] = ny;
+                    }
+                    inRun = matches;
+                }
+            }
+        }
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    /// The behavior of the brush repeated along a whole row of the image
+    private static final class BehaviorPattern {
+
+        /// Pattern rows, one per brush row
+        private final int[][] rows;
+        /// Indicates which pattern rows are fully opaque, i.e. can be copied instead of composited
+        private final boolean[] opaque;
+
+        private BehaviorPattern(BufferedImage behavior, int cellX, int width) {
+
+            int w = behavior.getWidth();
+            int h = behavior.getHeight();
+            int[] brushRow = new int[w];
+
+            rows = new int[h][];
+            opaque = new boolean[h];
+            for (int y = 0; y < h; y++) {
+                behavior.getRGB(0, y, w, 1, brushRow, 0, w);
+                int[] row = new int[width];
+                boolean rowOpaque = true;
+                for (int x = 0; x < width; x++) {
+                    row[x] = brushRow[Math.floorMod(x - cellX, w)];
+                    rowOpaque &= (row[x] >>> 24) == 0xff;
+                }
+                rows[y] = row;
+                opaque[y] = rowOpaque;
+            }
+        }
+    }
+
+    /// Fill a band of rows [fromRow, toRow[, split in two while the band is large
+    private static final class Task extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final LayerImage image, brush;
+        private final int cellX, cellY, fromRow, toRow;
+        private final boolean background, foreground;
+        private final BehaviorPattern behavior;
+        /// The filled cells in row-major order (null for all the cells)
+        private final BitSet mask;
+
+        private Task(LayerImage image, LayerImage brush, int cellX, int cellY, int fromRow, int toRow,
+                     boolean background, boolean foreground, BehaviorPattern behavior, BitSet mask) {
+            this.image = image;
+            this.brush = brush;
+            this.cellX = cellX;
+            this.cellY = cellY;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.background = background;
+            this.foreground = foreground;
+            this.behavior = behavior;
+            this.mask = mask;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (toRow - fromRow > BAND_ROWS) {
+                int middle = (fromRow + toRow) >>> 1;
+                invokeAll(new Task(image, brush, cellX, cellY, fromRow, middle, background, foreground, behavior, mask),
+                        new Task(image, brush, cellX, cellY, middle, toRow, background, foreground, behavior, mask));
+                return;
+            }
+
+            // The layers have one tile per cell
+            if (background)
+                image.background.fill(brush.background, cellX, cellY, fromRow, toRow, mask);
+            if (foreground)
+                image.foreground.fill(brush.foreground, cellX, cellY, fromRow, toRow, mask);
+            if (behavior != null)
+                fillBehavior();
+        }
+
+        private void fillBehavior() {
+
+            BufferedImage dst = image.behavior;
+            int width = image.cellWidth;
+            // A packed ARGB behavior is written directly in its raster
+            int[] data = SrcOver.isPackedArgb(dst) ? SrcOver.dataOf(dst) : null;
+            int scan = data == null ? 0 : ((SinglePixelPackedSampleModel) dst.getSampleModel()).getScanlineStride();
+            int[] row = new int[width];
+
+            for (int y = fromRow; y < toRow; y++) {
+                int patternY = Math.floorMod(y - cellY, behavior.rows.length);
+                int[] pattern = behavior.rows[patternY];
+
+                if (data != null && behavior.opaque[patternY] && mask == null) {
+                    System.arraycopy(pattern, 0, data, y * scan, width);
+                    continue;
+                }
+
+                if (data != null)
+                    System.arraycopy(data, y * scan, row, 0, width);
+                else
+                    dst.getRGB(0, y, width, 1, row, 0, width);
+                for (int x = 0; x < width; x++) {
+                    if (mask == null || mask.get(y * width + x))
+                        row[x] = SrcOver.blend(row[x], pattern[x]);
+                }
+                if (data != null)
+                    System.arraycopy(row, 0, data, y * scan, width);
+                else
+                    dst.setRGB(0, y, width, 1, row, 0, width);
+            }
+        }
+    }
+}
@@ -0,0 +1,550 @@
+package ch.epfl.blchatel.leveleditor;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The History keeps the undo and redo edits of a LayerImage
+ * - an edit only stores the tiles and behavior cells changed by one operation (a stroke, a fill, ...)
+ * - the layers are snapshot in constant time per tile when an operation begins (the tiles are copy-on-write),
+ *   and the changed tiles are found by reference when it is committed
+ * - the edits are deflated, a tile shared by several cells being stored once
+ * - when the edits exceed the memory cap, the ones farthest from the present are spilled to a temporary file, whose
+ *   space is reused once they are dropped (undone, redone or discarded), the free end of the file being truncated
+ * All the methods are expected to be called from the same thread
+ */
+public final class History {
+
+    private final static int TILE_PIXELS = TiledLayer.TILE_SIZE * TiledLayer.TILE_SIZE;
+    /// References to the tiles in the encoded edits
+    private final static int EMPTY_TILE = -1, NEW_TILE = -2;
+
+    /// An encoded edit, kept in memory or spilled
+    private static final class Edit {
+        /// The changed cells
+        private final Rectangle bounds;
+        /// The deflated content (null when spilled)
+        private byte[] data;
+        /// Position and length of the content in the spill file
+        private long offset;
+        private int length;
+
+        private Edit(Rectangle bounds, byte[] data) {
+            this.bounds = bounds;
+            this.data = data;
+            this.length = data.length;
+        }
+    }
+
+    /// Listener interface to follow the changes made by undo and redo (i.e. to journal them)
+    public interface Listener {
+        /**
+         * React to an undone or redone edit
+         * @param patch (Array of byte): the encoded content given to the changed tiles and cells, see applyPatch
+         */
+        void onPatchApplied(byte[] patch);
+    }
+
+    /// The content of some tiles and behavior cells of an image
+    private static final class Patch {
+        private final int[][] indices = new int[2][];
+        private final BufferedImage[][] tiles = new BufferedImage[2][];
+        private int[] behaviorIndices, behaviorValues;
+    }
+
+    private final LayerImage image;
+    /// The listener of the undo and redo (may be null)
+    private Listener listener;
+    /// Memory cap of the edits in bytes, and maximum number of undo edits
+    private final long memoryCap;
+    private final int maxEdits;
+    /// The most recent edits first
+    private final Deque<Edit> undos, redos;
+    /// Memory used by the edits in bytes
+    private long memory;
+    /// The spill file, created on the first spill
+    private File spillFile;
+    private RandomAccessFile spill;
+    /// The length of the spill file, and its free extents (length by offset, the adjacent ones being merged)
+    private long spillLength;
+    private final TreeMap<Long, Integer> freeExtents = new TreeMap<>();
+
+    /// The snapshot of the pending operation (null if none)
+    private TiledLayer[] before;
+    private int[] behaviorBefore;
+
+    /**
+     * Default History Constructor
+     * @param image (LayerImage): the edited image (not null)
+     * @param memoryCap (long): memory cap of the edits in bytes (memoryCap >= 0)
+     * @param maxEdits (int): maximum number of undo edits (maxEdits > 0)
+     */
+    public History(LayerImage image, long memoryCap, int maxEdits) {
+
+        if (image == null)
+            throw new NullPointerException();
+        if (memoryCap < 0 || maxEdits < 1)
+            throw new IllegalArgumentException("the memory cap and the number of edits should be positive");
+
+        this.image = image;
+        this.memoryCap = memoryCap;
+        this.maxEdits = maxEdits;
+        this.undos = new ArrayDeque<>();
+        this.redos = new ArrayDeque<>();
+        this.memory = 0;
+    }
+
+    /**
+     * Set the listener of the undo and redo
+     * @param listener (Listener): the new listener (may be null)
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** @return (boolean): true if there is an edit to undo */
+    public boolean canUndo() {
+        return !undos.isEmpty();
+    }
+
+    /** @return (boolean): true if there is an edit to redo */
+    public boolean canRedo() {
+        return !redos.isEmpty();
+    }
+
+    /**
+     * Begin an operation: snapshot the image so that the changes can be found when it is committed
+     * Notice : a pending operation is committed first
+     */
+    public void begin() {
+
+        commit();
+
+        before = new TiledLayer[]{
+                image.background.copy(),
+                image.foreground == null ? null : image.foreground.copy()
+        };
+        behaviorBefore = image.behavior.getRGB(0, 0, image.cellWidth, image.cellHeight, null, 0, image.cellWidth);
+    }
+
+    /**
+     * Commit the pending operation: its changes become an undo edit and the redo edits are dropped
+     * @return (boolean): true if the operation changed the image, false otherwise (or if no operation is pending)
+     */
+    public boolean commit() {
+
+        if (before == null)
+            return false;
+
+        TiledLayer[] layers = layersOf(image);
+        Patch patch = new Patch();
+        for (int layer = 0; layer < layers.length; layer++) {
+            patch.indices[layer] = new int[0];
+            patch.tiles[layer] = new BufferedImage[0];
+            if (layers[layer] == null)
+                continue;
+
+            int count = 0;
+            int[] indices = new int[layers[layer].getNumXTiles() * layers[layer].getNumYTiles()];
+            for (int i = 0; i < indices.length; i++) {
+                if (!layers[layer].isSameTile(before[layer], i))
+                    indices[count++] = i;
+            }
+            patch.indices[layer] = Arrays.copyOf(indices, count);
+            patch.tiles[layer] = new BufferedImage[count];
+            for (int i = 0; i < count; i++)
+                patch.tiles[layer][i] = before[layer].tileAt(patch.indices[layer][i]);
+        }
+
+        int[] behavior = image.behavior.getRGB(0, 0, image.cellWidth, image.cellHeight, null, 0, image.cellWidth);
+        int count = 0;
+        int[] indices = new int[behavior.length];
+        for (int i = 0; i < behavior.length; i++) {
+            if (behavior[i] != behaviorBefore[i])
+                indices[count++] = i;
+        }
+        patch.behaviorIndices = Arrays.copyOf(indices, count);
+        patch.behaviorValues = new int[count];
+        for (int i = 0; i < count; i++)
+            patch.behaviorValues[i] = behaviorBefore[patch.behaviorIndices[i]];
+
+        before = null;
+        behaviorBefore = null;
+
+        Rectangle bounds = boundsOf(patch);
+        if (bounds == null)
+            return false;
+
+        for (Edit edit : redos)
+            release(edit);
+        redos.clear();
+        undos.push(newEdit(bounds, patch));
+        while (undos.size() > maxEdits)
+            release(undos.removeLast());
+        enforceCap();
+        return true;
+    }
+
+    /**
+     * Undo the most recent edit
+     * @return (Rectangle): the changed cells, null if there is nothing to undo or if the edit cannot be read
+     */
+    public Rectangle undo() {
+        commit();
+        return swap(undos, redos);
+    }
+
+    /**
+     * Redo the most recently undone edit
+     * @return (Rectangle): the changed cells, null if there is nothing to redo or if the edit cannot be read
+     */
+    public Rectangle redo() {
+        commit();
+        return swap(redos, undos);
+    }
+
+    /** Drop all the edits and delete the spill file */
+    public void close() {
+        before = null;
+        behaviorBefore = null;
+        undos.clear();
+        redos.clear();
+        memory = 0;
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            spill = null;
+            spillLength = 0;
+            freeExtents.clear();
+            if (!spillFile.delete())
+                spillFile.deleteOnExit();
+        }
+    }
+
+    /**
+     * Apply the top edit of a stack to the image and push its inverse on the other stack
+     * @param from (Deque<Edit>): the stack to pop from (not null)
+     * @param to (Deque<Edit>): the stack to push the inverse to (not null)
+     * @return (Rectangle): the changed cells, null if the stack is empty or if the edit cannot be read
+     */
+    private Rectangle swap(Deque<Edit> from, Deque<Edit> to) {
+
+        if (from.isEmpty())
+            return null;
+
+        Edit edit = from.pop();
+        byte[] data = read(edit);
+        Patch patch = decode(data);
+        release(edit);
+        if (patch == null)
+            return null;
+
+        to.push(newEdit(edit.bounds, apply(image, patch)));
+        enforceCap();
+        if (listener != null)
+            listener.onPatchApplied(data);
+        return edit.bounds;
+    }
+
+    /**
+     * Apply an encoded patch (see Listener) to an image of the same size as the one it was taken from
+     * @param image (LayerImage): the image to change (not null)
+     * @param data (Array of byte): the encoded patch (not null)
+     * @return (boolean): true if the patch is applied, false if it cannot be decoded
+     */
+    public static boolean applyPatch(LayerImage image, byte[] data) {
+        Patch patch = decode(data);
+        if (patch == null)
+            return false;
+        apply(image, patch);
+        return true;
+    }
+
+    /**
+     * Apply a patch to an image
+     * @param image (LayerImage): the image to change (not null)
+     * @param patch (Patch): the patch (not null)
+     * @return (Patch): the inverse patch, i.e. the former content of the same cells
+     */
+    private static Patch apply(LayerImage image, Patch patch) {
+
+        // The inverse is the current content of the same cells
+        TiledLayer[] layers = layersOf(image);
+        Patch inverse = new Patch();
+        for (int layer = 0; layer < layers.length; layer++) {
+            inverse.indices[layer] = patch.indices[layer];
+            inverse.tiles[layer] = new BufferedImage[patch.indices[layer].length];
+            for (int i = 0; i < patch.indices[layer].length; i++) {
+                inverse.tiles[layer][i] = layers[layer].tileAt(patch.indices[layer][i]);
+                layers[layer].setTileAt(patch.indices[layer][i], patch.tiles[layer][i]);
+            }
+        }
+        inverse.behaviorIndices = patch.behaviorIndices;
+        inverse.behaviorValues = new int[patch.behaviorIndices.length];
+        for (int i = 0; i < patch.behaviorIndices.length; i++) {
+            int x = patch.behaviorIndices[i] % image.cellWidth;
+            int y = patch.behaviorIndices[i] / image.cellWidth;
+            inverse.behaviorValues[i] = image.behavior.getRGB(x, y);
+            image.behavior.setRGB(x, y, patch.behaviorValues[i]);
+        }
+        return inverse;
+    }
+
+    private Edit newEdit(Rectangle bounds, Patch patch) {
+        Edit edit = new Edit(bounds, encode(patch));
+        memory += edit.length;
+        return edit;
+    }
+
+    /**
+     * Drop an edit, its memory or its space in the spill file being released
+     * Notice : must be called once per dropped edit
+     * @param edit (Edit): the dropped edit (not null)
+     */
+    private void release(Edit edit) {
+        if (edit.data != null)
+            memory -= edit.length;
+        else
+            freeExtent(edit.offset, edit.length);
+        edit.data = null;
+    }
+
+    /**
+     * Find the space of a spilled edit: the first free extent large enough, or the end of the spill file
+     * @param length (int): the length of the edit
+     * @return (long): the offset of the edit in the spill file
+     */
+    private long allocateExtent(int length) {
+        for (Map.Entry<Long, Integer> extent : freeExtents.entrySet()) {
+            long offset = extent.getKey();
+            int free = extent.getValue();
+            if (free >= length) {
+                freeExtents.remove(offset);
+                if (free > length)
+                    freeExtents.put(offset + length, free - length);
+                return offset;
+            }
+        }
+        long offset = spillLength;
+        spillLength += length;
+        return offset;
+    }
+
+    /**
+     * Release the space of a spilled edit, merged with the adjacent free extents (the end of the file is truncated)
+     * @param offset (long): the offset of the edit in the spill file
+     * @param length (int): the length of the edit
+     */
+    private void freeExtent(long offset, int length) {
+        long end = offset + length;
+        Map.Entry<Long, Integer> previous = freeExtents.floorEntry(offset);
+        if (previous != null && previous.getKey() + previous.getValue() == offset) {
+            offset = previous.getKey();
+            freeExtents.remove(offset);
+        }
+        Integer next = freeExtents.remove(end);
+        if (next != null)
+            end += next;
+
+        if (end < spillLength) {
+            freeExtents.put(offset, (int) (end - offset));
+            return;
+        }
+        spillLength = offset;
+        try {
+            spill.setLength(spillLength);
+        } catch (IOException e) {
+            // The space is still reused
+            e.printStackTrace();
+        }
+    }
+
+    /** Spill the in-memory edits farthest from the present until the memory cap is respected */
+    private void enforceCap() {
+        spillFarthest(undos.descendingIterator());
+        spillFarthest(redos.descendingIterator());
+    }
+
+    private void spillFarthest(Iterator<Edit> farthestFirst) {
+
+        while (memory > memoryCap && farthestFirst.hasNext()) {
+            Edit edit = farthestFirst.next();
+            if (edit.data == null)
+                continue;
+            try {
+                if (spill == null) {
+                    spillFile = File.createTempFile("leveleditor", ".history");
+                    spillFile.deleteOnExit();
+                    spill = new RandomAccessFile(spillFile, "rw");
+                }
+                long offset = allocateExtent(edit.length);
+                try {
+                    spill.seek(offset);
+                    spill.write(edit.data);
+                } catch (IOException e) {
+                    freeExtent(offset, edit.length);
+                    throw e;
+                }
+                edit.offset = offset;
+                memory -= edit.length;
+                edit.data = null;
+            } catch (IOException e) {
+                // Keep the edit in memory
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+
+    private byte[] read(Edit edit) {
+
+        if (edit.data != null)
+            return edit.data;
+        try {
+            byte[] data = new byte[edit.length];
+            spill.seek(edit.offset);
+            spill.readFully(data);
+            return data;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Encode a patch, each distinct tile being written once
+     * @param patch (Patch): the patch (not null)
+     * @return (Array of byte): the deflated patch
+     */
+    private static byte[] encode(Patch patch) {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(bytes, deflater)))) {
+
+            Map<BufferedImage, Integer> written = new IdentityHashMap<>();
+            ByteBuffer buffer = ByteBuffer.allocate(4 * TILE_PIXELS);
+            for (int layer = 0; layer < patch.indices.length; layer++) {
+                out.writeInt(patch.indices[layer].length);
+                for (int i = 0; i < patch.indices[layer].length; i++) {
+                    out.writeInt(patch.indices[layer][i]);
+                    BufferedImage tile = patch.tiles[layer][i];
+                    if (tile == null) {
+                        out.writeInt(EMPTY_TILE);
+                    } else if (written.containsKey(tile)) {
+                        out.writeInt(written.get(tile));
+                    } else {
+                        written.put(tile, written.size());
+                        out.writeInt(NEW_TILE);
+                        buffer.clear();
+                        buffer.asIntBuffer().put(((DataBufferInt) tile.getRaster().getDataBuffer()).getData());
+                        out.write(buffer.array());
+                    }
+                }
+            }
+            out.writeInt(patch.behaviorIndices.length);
+            for (int i = 0; i < patch.behaviorIndices.length; i++) {
+                out.writeInt(patch.behaviorIndices[i]);
+                out.writeInt(patch.behaviorValues[i]);
+            }
+        } catch (IOException e) {
+            // Cannot happen in memory
+            throw new UncheckedIOException(e);
+        } finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a patch
+     * @param data (Array of byte): the deflated patch (may be null)
+     * @return (Patch): the patch, null if the data is null or cannot be decoded
+     */
+    private static Patch decode(byte[] data) {
+
+        if (data == null)
+            return null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(data))))) {
+
+            Patch patch = new Patch();
+            List<BufferedImage> read = new ArrayList<>();
+            byte[] buffer = new byte[4 * TILE_PIXELS];
+            for (int layer = 0; layer < patch.indices.length; layer++) {
+                int count = in.readInt();
+                patch.indices[layer] = new int[count];
+                patch.tiles[layer] = new BufferedImage[count];
+                for (int i = 0; i < count; i++) {
+                    patch.indices[layer][i] = in.readInt();
+                    int ref = in.readInt();
+                    if (ref == NEW_TILE) {
+                        BufferedImage tile = new BufferedImage(TiledLayer.TILE_SIZE, TiledLayer.TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+                        in.readFully(buffer);
+                        ByteBuffer.wrap(buffer).asIntBuffer().get(((DataBufferInt) tile.getRaster().getDataBuffer()).getData());
+                        read.add(tile);
+                        patch.tiles[layer][i] = tile;
+                    } else if (ref != EMPTY_TILE) {
+                        patch.tiles[layer][i] = read.get(ref);
+                    }
+                }
+            }
+            int count = in.readInt();
+            patch.behaviorIndices = new int[count];
+            patch.behaviorValues = new int[count];
+            for (int i = 0; i < count; i++) {
+                patch.behaviorIndices[i] = in.readInt();
+                patch.behaviorValues[i] = in.readInt();
+            }
+            return patch;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @param patch (Patch): the patch (not null)
+     * @return (Rectangle): the bounds of the cells of the patch, null if it is empty
+     */
+    private Rectangle boundsOf(Patch patch) {
+
+        Rectangle bounds = null;
+        for (int[] indices : patch.indices) {
+            for (int index : indices)
+                bounds = add(bounds, index % image.cellWidth, index / image.cellWidth);
+        }
+        for (int index : patch.behaviorIndices)
+            bounds = add(bounds, index % image.cellWidth, index / image.cellWidth);
+        return bounds;
+    }
+
+    private static Rectangle add(Rectangle bounds, int x, int y) {
+        if (bounds == null)
+            return new Rectangle(x, y, 1, 1);
+        bounds.add(new Rectangle(x, y, 1, 1));
+        return bounds;
+    }
+
+    private static TiledLayer[] layersOf(LayerImage image) {
+        return new TiledLayer[]{image.background, image.foreground};
+    }
+}
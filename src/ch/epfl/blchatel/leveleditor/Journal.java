@@ -0,0 +1,684 @@
+package ch.epfl.blchatel.leveleditor;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The Journal records the edits of an image since its last save, so that they can be recovered after a crash
+ * - the journal starts from the saved level (or from an empty image) and only holds the operations: brush stamps,
+ *   fills, region fills (brush, cell, layer mask) and the content set by undo and redo (see History.Listener)
+ * - a brush is written once, the operations referring to it by its id
+ * - the records are appended through a buffer, written to the file after each operation and forced to the disk
+ *   in batches (at most once per SYNC_INTERVAL, and at the latest SYNC_INTERVAL after an operation, even if no other
+ *   operation follows)
+ * - each record has a checksum: a record torn by a crash ends the journal
+ * - once a save succeed, the journal only keeps the operations done after the saved snapshot (see checkpoint)
+ * The recovery replays the operations onto the saved level, which takes about the time of the edits themselves
+ * without the user (i.e. seconds for hours of editing)
+ * Each running editor owns its journal file (see acquireFile): a second editor does not replace the journal of the
+ * first one, and the journal of a crashed editor is recovered by the next editor taking its file
+ * Notice : the methods are synchronized, a checkpoint being done from the saving thread
+ */
+public final class Journal {
+
+    /// Maximal delay between an operation and its forcing to the disk in nanosecond
+    public final static long SYNC_INTERVAL = 1_000_000_000L;
+
+    private final static byte[] MAGIC = {'L', 'V', 'J', '1'};
+    private final static int VERSION = 1;
+    /// Types of the records
+    private final static byte BRUSH = 1, STAMP = 2, FILL = 3, FILL_REGION = 4, PATCH = 5;
+    /// Layer mask of the operations
+    private final static int BACKGROUND = 1, FOREGROUND = 2, BEHAVIOR = 4;
+    /// Size of a record around its payload (type, length, checksum), and capacity of the append buffer
+    private final static int RECORD_OVERHEAD = 9;
+    private final static int BUFFER_SIZE = 1 << 16;
+    /// Number of journal files of a directory, i.e. of editors journaling at once
+    private final static int MAX_JOURNALS = 16;
+    /// The thread forcing the last operations to the disk once no other operation follows (daemon thread)
+    private final static ScheduledExecutorService SYNC_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Journal sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /// The locks of the journal files owned by this process by journal file, kept until it exits
+    private final static Map<File, FileLock> LOCKS = new HashMap<>();
+
+    private final Path file;
+    private final int cellWidth, cellHeight;
+    private final boolean hasForeground;
+    /// The file and the records not written to it yet
+    private FileChannel channel;
+    private final ByteBuffer buffer;
+    /// Time of the last forcing to the disk, and whether written records are not forced yet
+    private long lastSync;
+    private boolean unsynced;
+    /// The forcing scheduled for the written records not forced yet (null if none)
+    private ScheduledFuture<?> pendingSync;
+    /// The brushes written into the journal, by id (their records are kept to be written again by a checkpoint)
+    private final Map<LayerImage, Integer> brushIds;
+    private final List<ByteBuffer> brushRecords;
+
+    /**
+     * The Recovery is the image replayed from a journal
+     */
+    public static final class Recovery {
+
+        /// The saved level the journal starts from (null for a new image)
+        public final File levelFile;
+        /// The replayed image
+        public final LayerImage image;
+        /// Number of replayed operations
+        public final int operations;
+
+        /// Length of the valid records, and the brush records (to resume the journal)
+        private final long length;
+        private final List<ByteBuffer> brushRecords;
+
+        private Recovery(File levelFile, LayerImage image, int operations, long length, List<ByteBuffer> brushRecords) {
+            this.levelFile = levelFile;
+            this.image = image;
+            this.operations = operations;
+            this.length = length;
+            this.brushRecords = brushRecords;
+        }
+    }
+
+    private Journal(Path file, int cellWidth, int cellHeight, boolean hasForeground) {
+        this.file = file;
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+        this.hasForeground = hasForeground;
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.lastSync = System.nanoTime();
+        this.brushIds = new IdentityHashMap<>();
+        this.brushRecords = new ArrayList<>();
+    }
+
+    /**
+     * Take a journal file not owned by another running editor: name.journal, then name.1.journal, name.2.journal...
+     * - each journal file is guarded by a lock file next to it (name.journal.lock), the journal itself being replaced
+     *   by the checkpoints
+     * - the lock is held until the process exits, and is released by the system if it crashes: the next editor taking
+     *   the file recovers its journal
+     * @param directory (File): the directory of the journal files (not null)
+     * @param name (String): the name of the journal files, without extension (not null)
+     * @return (File): the journal file owned by this process
+     * @throws IOException if a lock file cannot be opened, or if all the journal files are owned
+     */
+    public static File acquireFile(File directory, String name) throws IOException {
+        synchronized (LOCKS) {
+            for (int i = 0; i < MAX_JOURNALS; i++) {
+                File journalFile = new File(directory, i == 0 ? name + ".journal" : name + "." + i + ".journal");
+                // Notice : closing another channel of an owned lock file would release its lock
+                if (LOCKS.containsKey(journalFile))
+                    continue;
+                FileChannel lockChannel = FileChannel.open(new File(journalFile.getPath() + ".lock").toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                FileLock lock = lockChannel.tryLock();
+                if (lock != null) {
+                    LOCKS.put(journalFile, lock);
+                    return journalFile;
+                }
+                lockChannel.close();
+            }
+        }
+        throw new IOException("Error while opening a journal in " + directory + " : " + MAX_JOURNALS
+                + " editors are already running");
+    }
+
+    /**
+     * Start a new journal, replacing any former journal in the same file
+     * @param journalFile (File): the journal file (not null)
+     * @param levelFile (File): the saved level the image comes from (null for a new image)
+     * @param image (LayerImage): the edited image, as saved (not null)
+     * @return (Journal): the new journal
+     * @throws IOException if the journal cannot be written
+     */
+    public static Journal create(File journalFile, File levelFile, LayerImage image) throws IOException {
+        Journal journal = new Journal(journalFile.toPath(), image.cellWidth, image.cellHeight, image.foreground != null);
+        journal.rewrite(levelFile, ByteBuffer.allocate(0));
+        return journal;
+    }
+
+    /**
+     * Continue a recovered journal: the next operations are appended after the replayed ones
+     * @param journalFile (File): the journal file (not null)
+     * @param recovery (Recovery): the recovery of this journal file (not null)
+     * @return (Journal): the journal
+     * @throws IOException if the journal cannot be written
+     */
+    public static Journal resume(File journalFile, Recovery recovery) throws IOException {
+        LayerImage image = recovery.image;
+        Journal journal = new Journal(journalFile.toPath(), image.cellWidth, image.cellHeight, image.foreground != null);
+        journal.channel = FileChannel.open(journal.file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // A torn record is dropped
+        journal.channel.truncate(recovery.length);
+        journal.channel.position(recovery.length);
+        journal.brushRecords.addAll(recovery.brushRecords);
+        return journal;
+    }
+
+    /**
+     * Replay a journal onto the level it starts from
+     * Notice : the journal is read into memory (a mapping would prevent the file from being truncated or replaced on
+     * some systems, i.e. Windows, see resume and rewrite), and replayed until its end or its first torn record
+     * @param journalFile (File): the journal file (not null)
+     * @return (Recovery): the replayed image, null if there is no journal or if it holds no operation
+     * @throws IOException if the journal or its level cannot be read, or if the level does not match the journal
+     */
+    public static Recovery recover(File journalFile) throws IOException {
+
+        if (!journalFile.isFile())
+            return null;
+
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Error while reading " + journalFile + " : file is too large");
+            buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0);
+            buffer.flip();
+        }
+
+        // Header
+        File levelFile;
+        int cellWidth, cellHeight;
+        boolean hasForeground;
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || buffer.getInt() != VERSION)
+                throw new IOException("Error while reading " + journalFile + " : not a journal (or an unknown version)");
+            byte[] path = new byte[buffer.getShort() & 0xffff];
+            buffer.get(path);
+            levelFile = path.length == 0 ? null : new File(new String(path, StandardCharsets.UTF_8));
+            cellWidth = buffer.getInt();
+            cellHeight = buffer.getInt();
+            hasForeground = buffer.get() != 0;
+        } catch (RuntimeException e) {
+            // i.e. BufferUnderflowException
+            throw new IOException("Error while reading " + journalFile + " : file is truncated", e);
+        }
+
+        // Operations
+        // A checkpoint writes the brushes again, a brush may be found twice
+        List<ByteBuffer> brushRecords = new ArrayList<>();
+        Map<Integer, LayerImage> brushes = new HashMap<>();
+        List<ByteBuffer> operations = new ArrayList<>();
+        long length = buffer.position();
+        ByteBuffer record;
+        while ((record = nextRecord(buffer)) != null) {
+            length = buffer.position();
+            byte type = record.get(0);
+            if (type == BRUSH) {
+                if (!brushes.containsKey(record.getInt(1))) {
+                    brushRecords.add(frame(record));
+                    brushes.put(record.getInt(1), readBrush(record));
+                }
+            } else {
+                operations.add(record);
+            }
+        }
+        if (operations.isEmpty())
+            return null;
+
+        LayerImage image;
+        if (levelFile == null) {
+            image = LayerImage.createImage(cellWidth, cellHeight);
+        } else {
+            image = LayerImage.loadFromFile(levelFile);
+            if (image.cellWidth != cellWidth || image.cellHeight != cellHeight || (image.foreground != null) != hasForeground)
+                throw new IOException("Error while recovering " + levelFile + " : the level does not match the journal " + journalFile);
+        }
+
+        try {
+            for (ByteBuffer operation : operations) {
+                if (!replay(image, operation, brushes))
+                    throw new IOException("Error while reading " + journalFile + " : invalid operation");
+            }
+        } catch (RuntimeException e) {
+            // i.e. BufferUnderflowException
+            throw new IOException("Error while reading " + journalFile + " : invalid operation", e);
+        }
+        return new Recovery(levelFile, image, operations.size(), length, brushRecords);
+    }
+
+    /**
+     * Record a stamp of a brush (see LayerImage.drawBrush)
+     * @param brush (LayerImage): the drawn brush (not null)
+     * @param cellX (int): x-coordinate of the cell where the top-left cell of the brush is drawn
+     * @param cellY (int): y-coordinate of the cell where the top-left cell of the brush is drawn
+     * @param background (boolean): true if drawn on the background layer
+     * @param foreground (boolean): true if drawn on the foreground layer
+     * @param behavior (boolean): true if drawn on the behavior layer
+     */
+    public synchronized void stamp(LayerImage brush, int cellX, int cellY, boolean background, boolean foreground, boolean behavior) {
+        int id = brushId(brush);
+        append(record(STAMP, 13).putInt(id).putInt(cellX).putInt(cellY).put(mask(background, foreground, behavior)));
+    }
+
+    /**
+     * Record a fill of the image with a brush (see FillEngine.fill)
+     * @param brush (LayerImage): the repeated brush (not null)
+     * @param cellX (int): x-coordinate of a cell where the top-left cell of the brush is drawn
+     * @param cellY (int): y-coordinate of a cell where the top-left cell of the brush is drawn
+     * @param background (boolean): true if the background layer is filled
+     * @param foreground (boolean): true if the foreground layer is filled
+     * @param behavior (boolean): true if the behavior layer is filled
+     */
+    public synchronized void fill(LayerImage brush, int cellX, int cellY, boolean background, boolean foreground, boolean behavior) {
+        int id = brushId(brush);
+        append(record(FILL, 13).putInt(id).putInt(cellX).putInt(cellY).put(mask(background, foreground, behavior)));
+    }
+
+    /**
+     * Record a fill of a region with a brush (see FillEngine.fillRegion)
+     * @param brush (LayerImage): the repeated brush (not null)
+     * @param cellX (int): x-coordinate of a cell where the top-left cell of the brush is drawn
+     * @param cellY (int): y-coordinate of a cell where the top-left cell of the brush is drawn
+     * @param seedX (int): x-coordinate of the seed cell
+     * @param seedY (int): y-coordinate of the seed cell
+     * @param background (boolean): true if the background layer is filled
+     * @param foreground (boolean): true if the foreground layer is filled
+     * @param behavior (boolean): true if the behavior layer is filled
+     */
+    public synchronized void fillRegion(LayerImage brush, int cellX, int cellY, int seedX, int seedY,
+                                        boolean background, boolean foreground, boolean behavior) {
+        int id = brushId(brush);
+        append(record(FILL_REGION, 21).putInt(id).putInt(cellX).putInt(cellY).putInt(seedX).putInt(seedY)
+                .put(mask(background, foreground, behavior)));
+    }
+
+    /**
+     * Record the content set by an undo or a redo
+     * @param patch (Array of byte): the encoded patch (see History.Listener)
+     */
+    public synchronized void patch(byte[] patch) {
+        append(record(PATCH, patch.length).put(patch));
+    }
+
+    /**
+     * End an operation: its records are written to the file, and forced to the disk if the last forcing is older
+     * than SYNC_INTERVAL, otherwise once SYNC_INTERVAL has passed since the last forcing
+     */
+    public synchronized void commit() {
+        try {
+            flush();
+            long elapsed = System.nanoTime() - lastSync;
+            if (unsynced && elapsed >= SYNC_INTERVAL)
+                sync();
+            else if (unsynced && pendingSync == null)
+                pendingSync = SYNC_TIMER.schedule(this::syncPending, SYNC_INTERVAL - elapsed, TimeUnit.NANOSECONDS);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /// Force the records written since the last forcing, from the timer (see commit)
+    private synchronized void syncPending() {
+        pendingSync = null;
+        // A closed journal was forced by close
+        if (!unsynced || !channel.isOpen())
+            return;
+        try {
+            sync();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return (long): the position of the next operation, to give to checkpoint once the current state of the image
+     * is saved
+     */
+    public synchronized long mark() {
+        try {
+            return channel.position() + buffer.position();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * Drop the operations saved into a level: the journal now starts from this level
+     * Notice : the journal is rewritten into a temporary file, then renamed
+     * @param levelFile (File): the saved level (not null)
+     * @param mark (long): the position of the first operation not saved, see mark
+     */
+    public synchronized void checkpoint(File levelFile, long mark) {
+        // A closed journal may have been replaced by the journal of another image
+        if (!channel.isOpen())
+            return;
+        try {
+            flush();
+            long end = channel.position();
+            if (mark < 0 || mark > end)
+                return;
+            ByteBuffer tail = ByteBuffer.allocate((int) (end - mark));
+            while (tail.hasRemaining() && channel.read(tail, mark + tail.position()) >= 0);
+            tail.flip();
+            FileChannel previous = channel;
+            rewrite(levelFile, tail);
+            previous.close();
+        } catch (IOException e) {
+            // The journal still starts from the former level
+            e.printStackTrace();
+        }
+    }
+
+    /** Close the journal, its records being forced to the disk */
+    public synchronized void close() {
+        if (pendingSync != null) {
+            pendingSync.cancel(false);
+            pendingSync = null;
+        }
+        try {
+            flush();
+            sync();
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write the journal file: the header, the brushes and the given operations
+     * @param levelFile (File): the level the journal starts from (null for a new image)
+     * @param operations (ByteBuffer): the records of the operations
+     * @throws IOException if the journal cannot be written
+     */
+    private void rewrite(File levelFile, ByteBuffer operations) throws IOException {
+
+        byte[] path = levelFile == null ? new byte[0] : levelFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8);
+        if (path.length > 0xffff)
+            throw new IOException("Error while writing " + file + " : path too long " + levelFile);
+        ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 4 + 2 + path.length + 9);
+        header.put(MAGIC).putInt(VERSION).putShort((short) path.length).put(path)
+                .putInt(cellWidth).putInt(cellHeight).put((byte) (hasForeground ? 1 : 0));
+        header.flip();
+
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".saving");
+        try (FileChannel out = FileChannel.open(temporaryFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(out, header);
+            for (ByteBuffer brushRecord : brushRecords)
+                writeFully(out, brushRecord.duplicate());
+            writeFully(out, operations);
+            out.force(false);
+        }
+        try {
+            Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        lastSync = System.nanoTime();
+        unsynced = false;
+    }
+
+    /**
+     * Getter for the id of a brush, written into the journal on its first use
+     * @param brush (LayerImage): the brush (not null)
+     * @return (int): the id of the brush
+     */
+    private int brushId(LayerImage brush) {
+
+        Integer id = brushIds.get(brush);
+        if (id != null)
+            return id;
+
+        int[] background = new int[brush.pixelWidth * brush.pixelHeight];
+        brush.background.getRGB(0, 0, brush.pixelWidth, brush.pixelHeight, background, 0, brush.pixelWidth);
+        int[] foreground = new int[brush.foreground == null ? 0 : background.length];
+        if (brush.foreground != null)
+            brush.foreground.getRGB(0, 0, brush.pixelWidth, brush.pixelHeight, foreground, 0, brush.pixelWidth);
+        int[] behavior = brush.behavior.getRGB(0, 0, brush.cellWidth, brush.cellHeight, null, 0, brush.cellWidth);
+        ByteBuffer pixels = ByteBuffer.allocate(4 * (background.length + foreground.length + behavior.length));
+        pixels.asIntBuffer().put(background).put(foreground).put(behavior);
+        byte[] deflated = deflate(pixels.array());
+
+        id = brushRecords.size();
+        ByteBuffer record = record(BRUSH, 21 + deflated.length).putInt(id)
+                .putInt(brush.pixelWidth).putInt(brush.pixelHeight)
+                .putInt(brush.cellWidth).putInt(brush.cellHeight).put((byte) (brush.foreground != null ? 1 : 0))
+                .put(deflated);
+        brushRecords.add(frame(record));
+        append(record);
+        brushIds.put(brush, id);
+        return id;
+    }
+
+    /**
+     * @param type (byte): type of the record
+     * @param length (int): length of the record content
+     * @return (ByteBuffer): a new record of this type, to fill with its content (see append)
+     */
+    private static ByteBuffer record(byte type, int length) {
+        return ByteBuffer.allocate(1 + length).put(type);
+    }
+
+    /**
+     * Frame a record: type, length, content and checksum
+     * @param record (ByteBuffer): the record, whole (not null)
+     * @return (ByteBuffer): the framed record, ready to be written
+     */
+    private static ByteBuffer frame(ByteBuffer record) {
+        byte[] content = record.array();
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        ByteBuffer framed = ByteBuffer.allocate(content.length + RECORD_OVERHEAD - 1);
+        framed.put(content[0]).putInt(content.length - 1).put(content, 1, content.length - 1).putInt((int) crc.getValue());
+        framed.flip();
+        return framed;
+    }
+
+    /**
+     * Append a filled record to the journal (see commit)
+     * @param record (ByteBuffer): the record (not null)
+     */
+    private void append(ByteBuffer record) {
+        ByteBuffer framed = frame(record);
+        try {
+            if (framed.remaining() > buffer.remaining())
+                flush();
+            if (framed.remaining() > buffer.remaining()) {
+                writeFully(channel, framed);
+                unsynced = true;
+            } else
+                buffer.put(framed);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        if (buffer.hasRemaining())
+            unsynced = true;
+        writeFully(channel, buffer);
+        buffer.clear();
+    }
+
+    private void sync() throws IOException {
+        channel.force(false);
+        lastSync = System.nanoTime();
+        unsynced = false;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * Read the next record of a journal
+     * @param buffer (ByteBuffer): the journal, positioned on a record (not null)
+     * @return (ByteBuffer): the record (type and content), null at the end of the journal or on a torn record
+     */
+    private static ByteBuffer nextRecord(ByteBuffer buffer) {
+
+        if (buffer.remaining() < RECORD_OVERHEAD)
+            return null;
+        int start = buffer.position();
+        byte type = buffer.get(start);
+        int length = buffer.getInt(start + 1);
+        if (type < BRUSH || type > PATCH || length < 0 || length > buffer.remaining() - RECORD_OVERHEAD)
+            return null;
+
+        byte[] content = new byte[1 + length];
+        content[0] = type;
+        buffer.position(start + 5);
+        buffer.get(content, 1, length);
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        if (buffer.getInt() != (int) crc.getValue()) {
+            buffer.position(start);
+            return null;
+        }
+        return ByteBuffer.wrap(content);
+    }
+
+    /**
+     * Replay an operation
+     * @param image (LayerImage): the replayed image (not null)
+     * @param record (ByteBuffer): the record of the operation (not null)
+     * @param brushes (Map of Integer to LayerImage): the brushes read so far, by id (not null)
+     * @return (boolean): true if the operation is replayed, false if it is not valid
+     */
+    private static boolean replay(LayerImage image, ByteBuffer record, Map<Integer, LayerImage> brushes) {
+
+        byte type = record.get();
+        if (type == PATCH) {
+            byte[] patch = new byte[record.remaining()];
+            record.get(patch);
+            return History.applyPatch(image, patch);
+        }
+
+        LayerImage brush = brushes.get(record.getInt());
+        if (brush == null)
+            return false;
+        int cellX = record.getInt(), cellY = record.getInt();
+        if (type == STAMP) {
+            int mask = record.get();
+            image.drawBrush(brush, cellX, cellY, (mask & BACKGROUND) != 0, (mask & FOREGROUND) != 0, (mask & BEHAVIOR) != 0);
+        } else if (type == FILL) {
+            int mask = record.get();
+            FillEngine.fill(image, brush, cellX, cellY, (mask & BACKGROUND) != 0, (mask & FOREGROUND) != 0, (mask & BEHAVIOR) != 0);
+        } else {
+            int seedX = record.getInt(), seedY = record.getInt();
+            int mask = record.get();
+            if (seedX < 0 || seedX >= image.cellWidth || seedY < 0 || seedY >= image.cellHeight)
+                return false;
+            FillEngine.fillRegion(image, brush, cellX, cellY, seedX, seedY,
+                    (mask & BACKGROUND) != 0, (mask & FOREGROUND) != 0, (mask & BEHAVIOR) != 0);
+        }
+        return true;
+    }
+
+    /**
+     * @param record (ByteBuffer): a brush record (not null)
+     * @return (LayerImage): the brush
+     * @throws IOException if the brush is not valid
+     */
+    private static LayerImage readBrush(ByteBuffer record) throws IOException {
+
+        record.position(1);
+        record.getInt();
+        int pixelWidth = record.getInt(), pixelHeight = record.getInt();
+        int cellWidth = record.getInt(), cellHeight = record.getInt();
+        boolean hasForeground = record.get() != 0;
+        if (pixelWidth < 1 || pixelHeight < 1 || cellWidth < 1 || cellHeight < 1)
+            throw new IOException("invalid brush in the journal");
+
+        BufferedImage background = new BufferedImage(pixelWidth, pixelHeight, BufferedImage.TYPE_INT_ARGB);
+        BufferedImage foreground = hasForeground ? new BufferedImage(pixelWidth, pixelHeight, BufferedImage.TYPE_INT_ARGB) : null;
+        BufferedImage behavior = new BufferedImage(cellWidth, cellHeight, BufferedImage.TYPE_INT_ARGB);
+        long pixels = (long) pixelWidth * pixelHeight;
+        byte[] deflated = new byte[record.remaining()];
+        record.get(deflated);
+        ByteBuffer inflated = ByteBuffer.wrap(inflate(deflated, 4 * ((hasForeground ? 2 : 1) * pixels + (long) cellWidth * cellHeight)));
+        inflated.asIntBuffer().get(SrcOver.dataOf(background));
+        inflated.position(4 * (int) pixels);
+        if (foreground != null) {
+            inflated.asIntBuffer().get(SrcOver.dataOf(foreground));
+            inflated.position(8 * (int) pixels);
+        }
+        inflated.asIntBuffer().get(SrcOver.dataOf(behavior));
+        return new LayerImage(background, foreground, behavior);
+    }
+
+    private static byte mask(boolean background, boolean foreground, boolean behavior) {
+        return (byte) ((background ? BACKGROUND : 0) | (foreground ? FOREGROUND : 0) | (behavior ? BEHAVIOR : 0));
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] out = new byte[Math.max(64, bytes.length / 2)];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == out.length)
+                    out = Arrays.copyOf(out, out.length * 2);
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            return Arrays.copyOf(out, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param deflated (Array of byte): the deflated bytes (not null)
+     * @param length (long): the expected inflated length
+     * @return (Array of byte): the inflated bytes
+     * @throws IOException if the bytes are not valid or do not have the expected length
+     */
+    private static byte[] inflate(byte[] deflated, long length) throws IOException {
+        if (length > Integer.MAX_VALUE)
+            throw new IOException("invalid brush in the journal");
+        byte[] bytes = new byte[(int) length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            int read = 0;
+            while (read < bytes.length && !inflater.finished() && !inflater.needsInput())
+                read += inflater.inflate(bytes, read, bytes.length - read);
+            if (read != bytes.length || !inflater.finished())
+                throw new IOException("invalid brush in the journal");
+        } catch (DataFormatException e) {
+            throw new IOException("invalid brush in the journal", e);
+        } finally {
+            inflater.end();
+        }
+        return bytes;
+    }
+}
@@ -1,26 +1,38 @@
 package ch.epfl.blchatel.leveleditor;
 
-import ch.epfl.blchatel.leveleditor.io.DefaultFileSystem;
+import ch.epfl.blchatel.leveleditor.io.CachingFileSystem;
+import ch.epfl.blchatel.leveleditor.io.DirectoryFileSystem;
 import ch.epfl.blchatel.leveleditor.io.FileSystem;
-import ch.epfl.blchatel.leveleditor.io.ResourceFileSystem;
+import ch.epfl.blchatel.leveleditor.io.PngEncoder;
 import ch.epfl.blchatel.leveleditor.swing.ColorMap;
 import ch.epfl.blchatel.leveleditor.swing.ComposedIcon;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.RenderedImage;
 import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
 
 
 public class LayerImage {
@@ -29,48 +41,79 @@ public class LayerImage {
     public final static int CELL_RESOLUTION = 64;
     private final static int ICON_RESOLUTION = 64;
     private final static int ICON_GAP = 5;
+    /// The threads of the background saves, one per saved file (daemon threads, created on demand)
+    private final static ExecutorService SAVE_POOL = Executors.newFixedThreadPool(4, r -> {
+        Thread thread = new Thread(r, "LayerImage save");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /// Listener interface to follow a background save, called from the saving threads
+    public interface SaveListener {
+        /**
+         * React to the progress of the save
+         * @param progress (double): the fraction of the save done, from 0 to 1
+         */
+        void onSaveProgress(double progress);
+        /**
+         * React to the end of the save
+         * @param success (boolean): true if the save succeed, false otherwise
+         */
+        void onSaveDone(boolean success);
+    }
 
-    private final static ImageIcon NULL_ICON = buildNullIcon();
-    public final ImageIcon icon;
-    public final ComposedIcon vsIcon;
-    public final BufferedImage background, foreground, behavior;
+    /// The icons, built on first access (the levels never show them, only the brushes do)
+    private ImageIcon icon;
+    private ComposedIcon vsIcon;
+    /// The edited image this image is a snapshot of (this image if it is not a snapshot)
+    private LayerImage origin = this;
+    /// The files last written by a save of this image or read by its loading (null if none), see save
+    private volatile SavedFiles saved;
+    /// The background and foreground layers are tiled (one tile per cell), the behavior has one pixel per cell
+    public final TiledLayer background, foreground;
+    public final BufferedImage behavior;
 
     public final int pixelWidth, pixelHeight, cellWidth, cellHeight;
 
-    private static ImageIcon buildNullIcon(){
-        FileSystem fileSystem = new ResourceFileSystem(DefaultFileSystem.INSTANCE);
-        return new ImageIcon(fileSystem.readImage("icons/alpha_64.png"));
+    /// Holder of the icon of a missing layer, loaded on first access
+    private static final class NullIcon {
+        private final static ImageIcon INSTANCE = buildNullIcon();
+
+        private static ImageIcon buildNullIcon(){
+            FileSystem fileSystem = CachingFileSystem.RESOURCES;
+            return new ImageIcon(fileSystem.readImage("icons/alpha_64.png"));
+        }
     }
 
     /**
      * The default LayerImage constructor
+     * Notice : the behavior is converted to a packed ARGB image once, so that it is stamped without any Graphics2D
+     * (see SrcOver.draw)
      *
      * @param background (Image) : the background layer (not null)
      * @param foreground (Image) : the foreground layer (may be null)
      * @param behavior   (Image) : the behavior layer (not null)
      */
     public LayerImage(Image background, Image foreground, Image behavior) {
+        this(toTiledLayer(background), toTiledLayer(foreground), LayerImage.toPackedArgb(behavior));
+    }
+
+    /**
+     * The tiled LayerImage constructor
+     *
+     * @param background (TiledLayer) : the background layer (not null)
+     * @param foreground (TiledLayer) : the foreground layer (may be null)
+     * @param behavior   (BufferedImage) : the behavior layer (not null)
+     */
+    public LayerImage(TiledLayer background, TiledLayer foreground, BufferedImage behavior) {
 
         if(background == null || behavior == null) {
             throw new IllegalArgumentException("background and behavior images should not be null");
         }
 
-        this.background = LayerImage.toBufferedImage(background);
-        this.foreground = foreground == null ? null : LayerImage.toBufferedImage(foreground);
-        this.behavior = LayerImage.toBufferedImage(behavior);
-
-        if(this.background == null || this.behavior == null) {
-            throw new IllegalArgumentException("background or behavior encounter problem while converting into buffered image");
-        }
-
-        icon = new ImageIcon(background.getScaledInstance(ICON_RESOLUTION, ICON_RESOLUTION, Image.SCALE_DEFAULT));
-
-        ImageIcon foregroundIcon = NULL_ICON;
-        if(foreground != null){
-            foregroundIcon =  new ImageIcon(foreground.getScaledInstance(ICON_RESOLUTION, ICON_RESOLUTION, Image.SCALE_DEFAULT));
-        }
-        ImageIcon behaviorIcon = new ImageIcon(behavior.getScaledInstance(ICON_RESOLUTION, ICON_RESOLUTION, Image.SCALE_DEFAULT));
-        vsIcon = new ComposedIcon(ICON_GAP, icon, foregroundIcon, behaviorIcon);
+        this.background = background;
+        this.foreground = foreground;
+        this.behavior = behavior;
 
         pixelWidth = this.background.getWidth();
         pixelHeight = this.background.getHeight();
@@ -82,7 +125,76 @@ public class LayerImage {
         }
     }
 
-    private boolean isValid() {
+    /**
+     * Getter for the background icon, built on first access
+     * @return (ImageIcon): the background thumbnail
+     */
+    public ImageIcon getIcon() {
+        if (icon == null)
+            icon = new ImageIcon(background.createThumbnail(ICON_RESOLUTION, ICON_RESOLUTION));
+        return icon;
+    }
+
+    /**
+     * Getter for the icon showing the three layers side by side, built on first access
+     * @return (ComposedIcon): the background, foreground and behavior thumbnails
+     */
+    public ComposedIcon getVsIcon() {
+        if (vsIcon == null) {
+            ImageIcon foregroundIcon = NullIcon.INSTANCE;
+            if(foreground != null){
+                foregroundIcon =  new ImageIcon(foreground.createThumbnail(ICON_RESOLUTION, ICON_RESOLUTION));
+            }
+            ImageIcon behaviorIcon = new ImageIcon(behavior.getScaledInstance(ICON_RESOLUTION, ICON_RESOLUTION, Image.SCALE_DEFAULT));
+            vsIcon = new ComposedIcon(ICON_GAP, getIcon(), foregroundIcon, behaviorIcon);
+        }
+        return vsIcon;
+    }
+
+    /**
+     * Take a snapshot of this image, which is not modified by the later edits of this image
+     * Notice : the tiles of the layers are shared until they are edited (copy on write), only the behavior layer
+     * (one pixel per cell) is copied
+     * @return (LayerImage): the snapshot
+     */
+    public LayerImage snapshot() {
+        BufferedImage behaviorCopy = new BufferedImage(cellWidth, cellHeight, BufferedImage.TYPE_INT_ARGB);
+        behaviorCopy.setRGB(0, 0, cellWidth, cellHeight, getBehaviorColors(), 0, cellWidth);
+        LayerImage snapshot = new LayerImage(background.copy(), foreground == null ? null : foreground.copy(), behaviorCopy);
+        snapshot.origin = origin;
+        return snapshot;
+    }
+
+    /**
+     * Draw (source over) a brush on the selected layers of this image
+     * @param brush (LayerImage): the drawn brush (not null)
+     * @param cellX (int): x-coordinate of the cell where the top-left cell of the brush is drawn
+     * @param cellY (int): y-coordinate of the cell where the top-left cell of the brush is drawn
+     * @param background (boolean): true to draw on the background layer
+     * @param foreground (boolean): true to draw on the foreground layer (if both image and brush have one)
+     * @param behavior (boolean): true to draw on the behavior layer
+     */
+    public void drawBrush(LayerImage brush, int cellX, int cellY, boolean background, boolean foreground, boolean behavior) {
+        // The layers have one tile per cell
+        if (background)
+            this.background.drawLayer(brush.background, cellX, cellY);
+        if (foreground && this.foreground != null && brush.foreground != null)
+            this.foreground.drawLayer(brush.foreground, cellX, cellY);
+        if (behavior)
+            SrcOver.draw(brush.behavior, this.behavior, cellX, cellY);
+    }
+
+    /** @return (Array of int): the ARGB colors of the behavior layer, in row-major order */
+    private int[] getBehaviorColors() {
+        return behavior.getRGB(0, 0, cellWidth, cellHeight, null, 0, cellWidth);
+    }
+
+    /**
+     * Check the dimensions of the layers
+     * @return (boolean): true if the foreground (if any) has the dimension of the background, and the background has
+     * CELL_RESOLUTION pixels per cell of the behavior
+     */
+    public boolean isValid() {
         // If background and foreground have not the same dimension
         if (foreground != null && (background.getWidth() != foreground.getWidth() || background.getHeight() != foreground.getHeight()))
             return false;
@@ -105,13 +217,38 @@ public class LayerImage {
     }
 
 
+    /**
+     * Convert an Image to a TiledLayer
+     *
+     * @param img (Image) : the input Image (may be null)
+     * @return (TiledLayer): the output layer (may be null)
+     */
+    private static TiledLayer toTiledLayer(Image img) {
+        BufferedImage bufferedImage = toBufferedImage(img);
+        return bufferedImage == null ? null : new TiledLayer(bufferedImage);
+    }
+
+    /**
+     * Convert an Image to a packed ARGB BufferedImage
+     *
+     * @param img (Image) : the input Image (may be null)
+     * @return (BufferedImage): the output Image, the input one if it is already packed ARGB (may be null)
+     */
+    private static BufferedImage toPackedArgb(Image img) {
+        BufferedImage bufferedImage = toBufferedImage(img);
+        return bufferedImage == null || SrcOver.isPackedArgb(bufferedImage) ? bufferedImage : argbOf(bufferedImage);
+    }
+
     /**
      * Convert an Image to a BufferedImage
      *
-     * @param img (Image) : the input Image (not null)
+     * @param img (Image) : the input Image (may be null)
      * @return (BufferedImage): the output Image (may be null)
      */
     private static BufferedImage toBufferedImage(Image img) {
+        if (img == null) {
+            return null;
+        }
         if (img instanceof BufferedImage) {
             return (BufferedImage) img;
         }
@@ -135,95 +272,518 @@ public class LayerImage {
     }
 
 
+    /**
+     * Load a lve file and its layers
+     * @param file (File): the lve file
+     * @return (LayerImage): the loaded image, null if the loading fails (the error is printed)
+     */
     public static LayerImage getFromFile(File file) {
 
         try {
-            if (!file.isFile() || !file.getName().toLowerCase().endsWith(".lve"))
-                throw new IOException("Error while reading : file is not .lve format");
+            return loadFromFile(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-            FileReader fileReader = new FileReader(file);
-            BufferedReader bufferedReader = new BufferedReader(fileReader);
+    /**
+     * Load a lve file and its layers, or a lvb file (see LvbFile)
+     * Notice : the three png files are read concurrently through a DirectoryFileSystem of the directory of the lve
+     * file (their paths cannot lead out of it), then decoded with ImageIO straight into ARGB images
+     * @param file (File): the lve or lvb file (not null)
+     * @return (LayerImage): the loaded image (not null)
+     * @throws IOException if the lve file or one of the layers cannot be read, the message telling which one
+     */
+    public static LayerImage loadFromFile(File file) throws IOException {
+        return loadFromFile(file, true);
+    }
 
-            String line;
+    /**
+     * Load a lve file and its layers, or a lvb file, see loadFromFile
+     * @param file (File): the lve or lvb file (not null)
+     * @param verbose (boolean): true to print the contents of a lve file, false to print nothing (i.e. in a batch)
+     * @return (LayerImage): the loaded image (not null)
+     * @throws IOException if the lve file or one of the layers cannot be read, the message telling which one
+     */
+    public static LayerImage loadFromFile(File file, boolean verbose) throws IOException {
 
-            String[] strings = new String[4];
+        if (file.isFile() && file.getName().toLowerCase().endsWith(".lvb")) {
+            LayerImage image = LvbFile.read(file);
+            image.saved = new SavedFiles(file.getAbsoluteFile().toPath(), null, image.background.getModCount(),
+                    image.foreground != null ? image.foreground.getModCount() : -1, image.getBehaviorColors());
+            return image;
+        }
+        if (!file.isFile() || !file.getName().toLowerCase().endsWith(".lve"))
+            throw new IOException("Error while reading " + file + " : file is not .lve or .lvb format");
 
+        String[] strings = new String[4];
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(file))) {
             for (int i = 0; i < 4; i++) {
-                line = bufferedReader.readLine();
+                String line = bufferedReader.readLine();
                 if (line == null) {
-                    throw new IOException("Error while reading : file has not enough line");
+                    throw new IOException("Error while reading " + file + " : file has not enough line");
                 }
                 strings[i] = line;
             }
-            fileReader.close();
+        }
 
+        if (verbose) {
             System.out.println("Contents of file:");
             for (String s : strings)
                 System.out.println(s);
+        }
 
-            String absolutePath = file.getAbsolutePath();
-            String filePath = absolutePath.substring(0, absolutePath.lastIndexOf(File.separator) + 1);
-
-            Image backgroundImage = new ImageIcon(filePath + strings[1]).getImage();
-            Image foregroundImage = new ImageIcon(filePath + strings[2]).getImage();
-            Image behaviorImage = new ImageIcon(filePath + strings[3]).getImage();
+        // The layers are read without blocking and decoded in the pool of the file system, then converted in the pool
+        DirectoryFileSystem directory = new DirectoryFileSystem(file.getAbsoluteFile().toPath().getParent());
+        CompletableFuture<TiledLayer> background = readLayer(directory, strings[1], "background", LayerImage::tilesOf);
+        CompletableFuture<TiledLayer> foreground = readLayer(directory, strings[2], "foreground", LayerImage::tilesOf);
+        CompletableFuture<BufferedImage> behavior = readLayer(directory, strings[3], "behavior", LayerImage::argbOf);
+        try {
+            LayerImage image = new LayerImage(background.join(), foreground.join(), behavior.join());
+            // The files are the ones a save would write: the unchanged layers are not written again
+            if (Arrays.asList(strings).equals(lveLines(file).subList(0, strings.length)))
+                image.saved = new SavedFiles(file.getAbsoluteFile().toPath(), null, background.join().getModCount(),
+                        foreground.join().getModCount(), image.getBehaviorColors());
+            return image;
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException)
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            throw new IOException("Error while reading " + file, e.getCause());
+        }
+    }
 
-            if (backgroundImage == null || foregroundImage == null || behaviorImage == null)
-                throw new IOException("One of the layer is null");
+    /**
+     * Read a layer of a lve file without blocking the caller, then convert it in the common pool
+     * @param directory (DirectoryFileSystem): the directory of the lve file (not null)
+     * @param name (String): the path of the png file in the directory (not null)
+     * @param layer (String): name of the layer, for the error message
+     * @param conversion (Function of BufferedImage and T): the conversion of the decoded image (not null)
+     * @return (CompletableFuture of T): completed with the converted layer, or exceptionally with an
+     * UncheckedIOException whose message tells which layer cannot be read
+     */
+    private static <T> CompletableFuture<T> readLayer(DirectoryFileSystem directory, String name, String layer,
+                                                      Function<BufferedImage, T> conversion) {
+        return directory.readBufferedImageAsync(name).handleAsync((image, e) -> {
+            if (e == null)
+                return conversion.apply(image);
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            String reason = cause instanceof NoSuchFileException ? "file not found" : cause.getMessage();
+            throw new UncheckedIOException(new IOException("Error while reading the " + layer + " layer "
+                    + directory.getRoot().resolve(name) + " : " + reason, cause));
+        });
+    }
 
-            return new LayerImage(backgroundImage, foregroundImage, behaviorImage);
+    /**
+     * Cut a decoded layer into tiles
+     * Notice : the usual RGBA and RGB png (i.e. the opaque layers saved by PngEncoder) are repacked from the decoded
+     * raster straight into the tiles (see TiledLayer), the other formats (i.e. palette png) being first drawn into an
+     * ARGB image
+     * @param image (BufferedImage): the image as decoded by ImageIO (not null)
+     * @return (TiledLayer): the tiled layer
+     */
+    private static TiledLayer tilesOf(BufferedImage image) {
+        if (!SrcOver.isPackedAbgr(image) && !SrcOver.isPackedBgr(image) && !SrcOver.isPackedArgb(image))
+            image = toArgb(image);
+        return new TiledLayer(image);
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
+    /**
+     * Convert a decoded image into an ARGB image
+     * Notice : the png decoder produces ABGR bytes for the usual RGBA png and BGR bytes for the RGB png, these are
+     * packed by hand (quicker than both a drawing and an ARGB destination type given to the decoder)
+     * @param image (BufferedImage): the image as decoded by ImageIO (not null)
+     * @return (BufferedImage): the ARGB image (not null), whose fully transparent pixels are 0
+     */
+    private static BufferedImage argbOf(BufferedImage image) {
+
+        // Other formats (i.e. palette png): the drawing does the conversion
+        boolean opaque = SrcOver.isPackedBgr(image);
+        if (!opaque && !SrcOver.isPackedAbgr(image))
+            return toArgb(image);
+
+        BufferedImage argb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        byte[] bytes = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        int[] pixels = SrcOver.dataOf(argb);
+        if (opaque) {
+            for (int i = 0, j = 0; i < pixels.length; i++, j += 3)
+                pixels[i] = 0xff000000 | (bytes[j + 2] & 0xff) << 16 | (bytes[j + 1] & 0xff) << 8 | (bytes[j] & 0xff);
+            return argb;
+        }
+        for (int i = 0, j = 0; i < pixels.length; i++, j += 4) {
+            int alpha = bytes[j] & 0xff;
+            // Like the drawing, the fully transparent pixels lose their color
+            if (alpha != 0)
+                pixels[i] = alpha << 24 | (bytes[j + 3] & 0xff) << 16 | (bytes[j + 2] & 0xff) << 8 | (bytes[j + 1] & 0xff);
         }
+        return argb;
+    }
+
+    /**
+     * @param image (BufferedImage): an image (not null)
+     * @return (BufferedImage): a copy of the image as an ARGB image, drawn
+     */
+    private static BufferedImage toArgb(BufferedImage image) {
+        BufferedImage argb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D bGr = argb.createGraphics();
+        bGr.drawImage(image, 0, 0, null);
+        bGr.dispose();
+        return argb;
     }
 
     public static LayerImage createImage(int w, int h) {
 
-        Image backgroundImage = new BufferedImage(w * CELL_RESOLUTION, h * CELL_RESOLUTION, BufferedImage.TYPE_INT_ARGB);
-        Image foregroundImage = new BufferedImage(w * CELL_RESOLUTION, h * CELL_RESOLUTION, BufferedImage.TYPE_INT_ARGB);
-        Image behaviorImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        // The layers are empty: no tile is allocated
+        TiledLayer backgroundLayer = new TiledLayer(w * CELL_RESOLUTION, h * CELL_RESOLUTION);
+        TiledLayer foregroundLayer = new TiledLayer(w * CELL_RESOLUTION, h * CELL_RESOLUTION);
+        BufferedImage behaviorImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
 
-        return new LayerImage(backgroundImage, foregroundImage, behaviorImage);
+        return new LayerImage(backgroundLayer, foregroundLayer, behaviorImage);
     }
 
 
     public static boolean saveToFile(LayerImage image, File lveFile) {
+        return saveToFile(image, lveFile, false);
+    }
 
-        if(image == null)
-            return false;
+    /**
+     * Save the image as a lve file and its layers as png files, waiting for the end of the save
+     * Notice : see saveInBackground
+     * @param image (LayerImage): the image to save (may be null)
+     * @param lveFile (File): the lve file (may be null)
+     * @param compactInfo (boolean): true to write the Info section in its run-length form
+     * @return (boolean): true if the save succeed, false otherwise
+     */
+    public static boolean saveToFile(LayerImage image, File lveFile, boolean compactInfo) {
+        return saveToFile(image, lveFile, compactInfo, PngEncoder.DEFAULT);
+    }
 
-        if (lveFile != null && lveFile.getName().toLowerCase().endsWith(".lve")) {
-            try {
-                String absolutePath = lveFile.getAbsolutePath();
-                String filePath = absolutePath.substring(0, absolutePath.lastIndexOf(File.separator) + 1);
-                String fileName = lveFile.getName().replaceFirst("[.][^.]+$", "");
+    /**
+     * Save the image as a lve file and its layers as png files, waiting for the end of the save
+     * Notice : see saveInBackground
+     * @param image (LayerImage): the image to save (may be null)
+     * @param lveFile (File): the lve file (may be null)
+     * @param compactInfo (boolean): true to write the Info section in its run-length form
+     * @param encoder (PngEncoder): the encoder of the png files (not null)
+     * @return (boolean): true if the save succeed, false otherwise
+     */
+    public static boolean saveToFile(LayerImage image, File lveFile, boolean compactInfo, PngEncoder encoder) {
+        return saveToFile(image, lveFile, compactInfo, encoder, true);
+    }
+
+    /**
+     * Save the image as a lve file and its layers as png files, waiting for the end of the save
+     * Notice : see saveInBackground
+     * @param image (LayerImage): the image to save (may be null)
+     * @param lveFile (File): the lve file (may be null)
+     * @param compactInfo (boolean): true to write the Info section in its run-length form
+     * @param encoder (PngEncoder): the encoder of the png files (not null)
+     * @param verbose (boolean): true to print the written and skipped files, false to only print the errors
+     * @return (boolean): true if the save succeed, false otherwise
+     */
+    public static boolean saveToFile(LayerImage image, File lveFile, boolean compactInfo, PngEncoder encoder,
+                                     boolean verbose) {
+        return saveInBackground(image, lveFile, compactInfo, encoder, null, verbose).join();
+    }
 
-                List<String> lines = new ArrayList<>();
-                lines.addAll(Arrays.asList(lveFile.getName(), "backgrounds/" + fileName + ".png", "foregrounds/" + fileName + ".png", "behaviors/" + fileName + ".png", "Info:"));
-                lines.addAll(Arrays.asList(ColorMap.createMap(image)));
+    /**
+     * Save the image as a lve file and its layers as png files, or as a lvb file (see LvbFile), in the background
+     * - the four files are encoded in parallel (each png by bands, see PngEncoder), each one into a temporary file
+     *   next to it
+     * - the files still holding the content of their layer (unchanged since the last save or the loading of the
+     *   image into the same lve file) are not written again
+     * - once all of them are written, the temporary files are renamed (atomically when the file system allows it):
+     *   a failed or interrupted save leaves the previous files untouched
+     * Notice : the image must not be edited during the save, save a snapshot of the edited image (see snapshot)
+     * Notice : the Info section is built in one pass over the behavior, then written, see ColorMap.writeMap
+     * Notice : a lvb file is written the same way, but as a whole (the Info section form and the encoder are unused)
+     * @param image (LayerImage): the image to save (may be null)
+     * @param lveFile (File): the lve or lvb file (may be null)
+     * @param compactInfo (boolean): true to write the Info section in its run-length form
+     * @param encoder (PngEncoder): the encoder of the png files (not null)
+     * @param listener (SaveListener): the listener following the save, called from the saving threads (may be null)
+     * @return (CompletableFuture of Boolean): completed with true if the save succeed, false otherwise (the error is
+     * printed)
+     */
+    public static CompletableFuture<Boolean> saveInBackground(LayerImage image, File lveFile, boolean compactInfo,
+                                                              PngEncoder encoder, SaveListener listener) {
+        return saveInBackground(image, lveFile, compactInfo, encoder, listener, true);
+    }
 
-                Path file = Paths.get(lveFile.getAbsolutePath());
-                Files.write(file, lines, Charset.forName("UTF-8"));
+    /**
+     * Save the image as a lve file and its layers as png files, or as a lvb file, in the background
+     * Notice : see saveInBackground
+     * @param image (LayerImage): the image to save (may be null)
+     * @param lveFile (File): the lve or lvb file (may be null)
+     * @param compactInfo (boolean): true to write the Info section in its run-length form
+     * @param encoder (PngEncoder): the encoder of the png files (not null)
+     * @param listener (SaveListener): the listener following the save, called from the saving threads (may be null)
+     * @param verbose (boolean): true to print the written and skipped files, false to only print the errors
+     * @return (CompletableFuture of Boolean): completed with true if the save succeed, false otherwise (the error is
+     * printed)
+     */
+    public static CompletableFuture<Boolean> saveInBackground(LayerImage image, File lveFile, boolean compactInfo,
+                                                              PngEncoder encoder, SaveListener listener,
+                                                              boolean verbose) {
+
+        CompletableFuture<Boolean> saved = CompletableFuture.completedFuture(false);
+        if (image != null && lveFile != null && lveFile.getName().toLowerCase().endsWith(".lve"))
+            saved = save(image, lveFile, compactInfo, encoder, listener, verbose);
+        else if (image != null && lveFile != null && lveFile.getName().toLowerCase().endsWith(".lvb"))
+            saved = saveLvb(image, lveFile, listener, verbose);
+        if (listener != null)
+            saved = saved.handle((success, e) -> {
+                // An unexpected error (i.e. a lazily decoded tile which cannot be read) is reported as a failed save
+                boolean ok = e == null && success;
+                listener.onSaveDone(ok);
+                return ok;
+            });
+        return saved;
+    }
 
-                File backgroundFile = new File(filePath + lines.get(1));
-                backgroundFile.getParentFile().mkdirs();
-                ImageIO.write(image.background, "png", backgroundFile);
+    /**
+     * Save an image, the files which already hold the content of their layer being skipped
+     * - the content of the files last saved (or loaded) is known by the modification counts of the layers and the
+     *   behavior colors
+     * - the lve file is only written if its Info section changed (behavior or form)
+     * @param image (LayerImage): the image to save (not null)
+     * @param lveFile (File): the lve file (not null)
+     * @param compactInfo (boolean): true to write the Info section in its run-length form
+     * @param encoder (PngEncoder): the encoder of the png files (not null)
+     * @param listener (SaveListener): the listener following the save (may be null)
+     * @param verbose (boolean): true to print the written and skipped files
+     * @return (CompletableFuture of Boolean): completed with true if the save succeed, false otherwise
+     */
+    private static CompletableFuture<Boolean> save(LayerImage image, File lveFile, boolean compactInfo,
+                                                   PngEncoder encoder, SaveListener listener, boolean verbose) {
+
+        List<String> lines = lveLines(lveFile);
+
+        Path lvePath = lveFile.getAbsoluteFile().toPath();
+        Path[] files = {lvePath, lvePath.resolveSibling(lines.get(1)), lvePath.resolveSibling(lines.get(2)), lvePath.resolveSibling(lines.get(3))};
+
+        TiledLayer foreground = image.foreground != null ? image.foreground : new TiledLayer(image.pixelWidth, image.pixelHeight);
+        RenderedImage[] layers = {null, image.background, foreground, image.behavior};
+
+        // Find the files to write
+        SavedFiles previous = image.origin.saved;
+        boolean sameFiles = previous != null && previous.lveFile.equals(lvePath);
+        long backgroundModCount = image.background.getModCount();
+        long foregroundModCount = image.foreground != null ? image.foreground.getModCount() : -1;
+        int[] behavior = image.getBehaviorColors();
+        boolean behaviorChanged = !sameFiles || !Arrays.equals(previous.behavior, behavior);
+        boolean[] changed = {
+                behaviorChanged || !Boolean.valueOf(compactInfo).equals(previous.compactInfo),
+                !sameFiles || backgroundModCount != previous.backgroundModCount,
+                !sameFiles || foregroundModCount != previous.foregroundModCount,
+                behaviorChanged};
+        Path[] temporaryFiles = new Path[files.length];
+        for (int i = 0; i < files.length; i++) {
+            if (changed[i] || !Files.isRegularFile(files[i]))
+                temporaryFiles[i] = files[i].resolveSibling(files[i].getFileName() + ".saving");
+        }
 
-                File foregroundFile = new File(filePath + lines.get(2));
-                foregroundFile.getParentFile().mkdirs();
-                ImageIO.write(image.foreground, "png", foregroundFile);
+        // The progress of each written file is weighted by its number of pixels (the Info section by its number of cells)
+        long cells = (long) image.cellWidth * image.cellHeight;
+        long pixels = (long) image.pixelWidth * image.pixelHeight;
+        long[] weights = {cells, pixels, pixels, cells};
+        for (int i = 0; i < files.length; i++) {
+            if (temporaryFiles[i] == null)
+                weights[i] = 0;
+        }
+        SaveProgress progress = new SaveProgress(listener, weights);
+
+        CompletableFuture<?>[] writes = new CompletableFuture<?>[files.length];
+        for (int i = 0; i < files.length; i++) {
+            final int part = i;
+            if (temporaryFiles[part] == null) {
+                writes[part] = CompletableFuture.completedFuture(null);
+                continue;
+            }
+            writes[part] = CompletableFuture.runAsync(() -> {
+                try {
+                    Files.createDirectories(files[part].getParent());
+                    if (part == 0)
+                        writeLve(image, lines, compactInfo, temporaryFiles[part]);
+                    else
+                        writePng(encoder, layers[part], temporaryFiles[part], progress.part(part));
+                    progress.update(part, 1.0);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(new IOException(
+                            "Error while writing " + files[part] + " : " + e.getMessage(), e));
+                }
+            }, SAVE_POOL);
+        }
 
-                File behaviorFile = new File(filePath + lines.get(3));
-                behaviorFile.getParentFile().mkdirs();
-                ImageIO.write(image.behavior, "png", behaviorFile);
+        return CompletableFuture.allOf(writes).handle((v, error) -> {
+            try {
+                if (error != null)
+                    throw error.getCause() instanceof UncheckedIOException ? error.getCause().getCause() : error;
+                for (int i = 0; i < files.length; i++) {
+                    if (temporaryFiles[i] != null)
+                        moveAtomically(temporaryFiles[i], files[i]);
+                }
+            } catch (Throwable e) {
+                e.printStackTrace();
+                for (Path temporaryFile : temporaryFiles) {
+                    try {
+                        if (temporaryFile != null)
+                            Files.deleteIfExists(temporaryFile);
+                    } catch (IOException ignored) {}
+                }
+                return false;
+            }
 
+            image.origin.saved = new SavedFiles(lvePath, compactInfo, backgroundModCount, foregroundModCount, behavior);
+            if (!verbose)
                 return true;
-            } catch (IOException e) {
+
+            System.out.println("Saved " + lvePath + ":");
+            for (int i = 0; i < files.length; i++) {
+                String tiles = "";
+                if (sameFiles && i == 1)
+                    tiles = ", " + image.background.getChangedTileCount(previous.backgroundModCount) + " changed tile(s)";
+                else if (sameFiles && i == 2 && image.foreground != null)
+                    tiles = ", " + image.foreground.getChangedTileCount(previous.foregroundModCount) + " changed tile(s)";
+                System.out.println(lines.get(i) + (temporaryFiles[i] != null ? " (written" + tiles + ")" : " (unchanged)"));
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Save an image as a lvb file, unless the file already holds its content (see save)
+     * @param image (LayerImage): the image to save (not null)
+     * @param lvbFile (File): the lvb file (not null)
+     * @param listener (SaveListener): the listener following the save (may be null)
+     * @param verbose (boolean): true to print whether the file is written
+     * @return (CompletableFuture of Boolean): completed with true if the save succeed, false otherwise
+     */
+    private static CompletableFuture<Boolean> saveLvb(LayerImage image, File lvbFile, SaveListener listener,
+                                                      boolean verbose) {
+
+        Path lvbPath = lvbFile.getAbsoluteFile().toPath();
+        SavedFiles previous = image.origin.saved;
+        long backgroundModCount = image.background.getModCount();
+        long foregroundModCount = image.foreground != null ? image.foreground.getModCount() : -1;
+        int[] behavior = image.getBehaviorColors();
+        if (previous != null && previous.lveFile.equals(lvbPath) && Files.isRegularFile(lvbPath)
+                && backgroundModCount == previous.backgroundModCount && foregroundModCount == previous.foregroundModCount
+                && Arrays.equals(previous.behavior, behavior)) {
+            if (verbose)
+                System.out.println("Saved " + lvbPath + " (unchanged)");
+            return CompletableFuture.completedFuture(true);
+        }
+
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                LvbFile.write(image, lvbPath, listener);
+            } catch (IOException | RuntimeException e) {
                 e.printStackTrace();
+                return false;
+            }
+            image.origin.saved = new SavedFiles(lvbPath, null, backgroundModCount, foregroundModCount, behavior);
+            if (verbose)
+                System.out.println("Saved " + lvbPath + " (written)");
+            return true;
+        }, SAVE_POOL);
+    }
+
+    /**
+     * @param lveFile (File): a lve file (not null)
+     * @return (List of String): the first lines of the lve file: its name, the paths of its three layers and the
+     * Info section header
+     */
+    static List<String> lveLines(File lveFile) {
+        String fileName = lveFile.getName().replaceFirst("[.][^.]+$", "");
+        return Arrays.asList(lveFile.getName(), "backgrounds/" + fileName + ".png", "foregrounds/" + fileName + ".png", "behaviors/" + fileName + ".png", "Info:");
+    }
+
+    private static void writeLve(LayerImage image, List<String> lines, boolean compactInfo, Path file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, Charset.forName("UTF-8"))) {
+            for (String line : lines) {
+                writer.write(line);
+                writer.newLine();
+            }
+            ColorMap.writeMap(image, writer, compactInfo);
+        }
+    }
+
+    private static void writePng(PngEncoder encoder, RenderedImage layer, Path file, PngEncoder.Listener progress) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+            encoder.write(layer, out, progress);
+        }
+    }
+
+    static void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * The SavedFiles describe the content of the files of an image, as last saved or loaded
+     */
+    private static final class SavedFiles {
+
+        /// The lve file (or the lvb file)
+        private final Path lveFile;
+        /// The form of its Info section (null if unknown)
+        private final Boolean compactInfo;
+        /// The modification counts of the saved layers (-1 for a missing foreground)
+        private final long backgroundModCount, foregroundModCount;
+        /// The saved behavior colors
+        private final int[] behavior;
+
+        SavedFiles(Path lveFile, Boolean compactInfo, long backgroundModCount, long foregroundModCount, int[] behavior) {
+            this.lveFile = lveFile;
+            this.compactInfo = compactInfo;
+            this.backgroundModCount = backgroundModCount;
+            this.foregroundModCount = foregroundModCount;
+            this.behavior = behavior;
+        }
+    }
+
+    /**
+     * The SaveProgress sums the progress of the files of a save, each one weighted
+     * - the listener is called each time the whole progress gains a percent
+     */
+    private static final class SaveProgress {
+
+        private final SaveListener listener;
+        private final long[] weights;
+        private final double[] progress;
+        private final long totalWeight;
+        private int percent;
+
+        SaveProgress(SaveListener listener, long... weights) {
+            this.listener = listener;
+            this.weights = weights;
+            this.progress = new double[weights.length];
+            long total = 0;
+            for (long weight : weights)
+                total += weight;
+            this.totalWeight = Math.max(1, total);
+        }
+
+        synchronized void update(int part, double fraction) {
+            progress[part] = fraction;
+            double done = 0;
+            for (int i = 0; i < weights.length; i++)
+                done += progress[i] * weights[i];
+            int newPercent = (int) (100 * done / totalWeight);
+            if (newPercent > percent) {
+                percent = newPercent;
+                if (listener != null)
+                    listener.onSaveProgress(percent / 100.0);
             }
         }
-        return false;
+
+        /** @return (PngEncoder.Listener): the png encoder listener updating the progress of a file */
+        PngEncoder.Listener part(int part) {
+            return progress -> update(part, progress);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,267 @@
+package ch.epfl.blchatel.leveleditor;
+
+import ch.epfl.blchatel.leveleditor.io.PngEncoder;
+import ch.epfl.blchatel.leveleditor.swing.BehaviorGrid;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Headless batch processing of the levels of a directory
+ * - the levels (.lve and .lvb files of the directory and its sub-directories) are processed in parallel on a bounded
+ *   pool: each one is loaded, validated, then re-saved, converted or exported as tilesets if it is valid
+ * - a level is valid if it can be loaded, its layers have consistent dimensions (see LayerImage.isValid) and all its
+ *   behavior colors are in the color map
+ * - the timings of each level are reported once all of them are processed, in the order of their paths
+ * Notice : the decoding and encoding of the layers are parallel too (on the common pool, see PngEncoder and LvbFile)
+ * Notice : the levels are loaded, saved and exported quietly, only the report is printed (and the errors of the saves)
+ */
+public final class LevelBatch {
+
+    /// The actions on each level: validation only, save in the same format, conversion, or tileset export only
+    private enum Action { VALIDATE, RESAVE, LVE, LVB, TILESET }
+
+    private final static String USAGE = "LevelBatch <directory> [validate|resave|lve|lvb|tileset] [-o <directory>]"
+            + " [-j <threads>] [-png fast|default|max] [-compact] [-tileset]";
+
+    /**
+     * Validate, re-save, convert or export all the levels of a directory
+     * Notice : the process exits with status 1 if a level is not valid or cannot be saved or exported
+     * @param args (Array of String): Assume of length 1 or more
+     *             [0] - path to the directory of the levels
+     *             [1] - action (optional)(default="validate"): "validate", "resave" (in the format of each level),
+     *                   "lve" or "lvb" (conversion into this format), "tileset" (export of the tilesets only, see
+     *                   TilesetExport)
+     *             then the options (optional):
+     *             -o directory - directory of the written levels, keeping their sub-directories (default=in place)
+     *             -j threads - number of levels processed at once (default=number of processors)
+     *             -png compression - "fast", "default" or "max" compression of the png layers of the lve levels (and
+     *                   of the tileset atlases)
+     *             -compact - write the Info section of the lve levels in its run-length form
+     *             -tileset - export the tilesets of the saved levels too
+     */
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 1)
+            throw new IllegalArgumentException("at least one argument ('levels directory') is expected: " + USAGE);
+
+        Path directory = Paths.get(args[0]).toAbsolutePath().normalize();
+        if (!Files.isDirectory(directory))
+            throw new IllegalArgumentException("the levels directory is not found: " + directory);
+
+        Action action = Action.VALIDATE;
+        Path output = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        PngEncoder encoder = PngEncoder.DEFAULT;
+        boolean compactInfo = false;
+        boolean tileset = false;
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            boolean hasValue = i + 1 < args.length;
+            if (i == 1 && !arg.startsWith("-")) {
+                try {
+                    action = Action.valueOf(arg.toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("unknown action '" + arg + "': " + USAGE);
+                }
+            } else if (arg.equals("-o") && hasValue) {
+                output = Paths.get(args[++i]).toAbsolutePath().normalize();
+            } else if (arg.equals("-j") && hasValue) {
+                threads = Integer.parseInt(args[++i]);
+                if (threads < 1)
+                    throw new IllegalArgumentException("the number of threads should be positive");
+            } else if (arg.equals("-png") && hasValue) {
+                encoder = encoderOf(args[++i]);
+            } else if (arg.equals("-compact")) {
+                compactInfo = true;
+            } else if (arg.equals("-tileset")) {
+                tileset = true;
+            } else {
+                throw new IllegalArgumentException("unexpected argument '" + arg + "': " + USAGE);
+            }
+        }
+
+        List<Path> levels = findLevels(directory, output);
+        System.out.println("Processing " + levels.size() + " level(s) of " + directory + " (" + action.name().toLowerCase(Locale.ROOT)
+                + ", " + threads + " thread(s))");
+
+        // The levels in flight (and their layers in memory) are bounded by the threads of the pool
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "LevelBatch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        final Action levelAction = action;
+        final Path levelOutput = output;
+        final PngEncoder levelEncoder = encoder;
+        final boolean levelCompactInfo = compactInfo;
+        final boolean levelTileset = tileset || action == Action.TILESET;
+        List<CompletableFuture<Result>> results = levels.stream()
+                .map(level -> CompletableFuture.supplyAsync(() -> process(directory, level, levelAction, levelOutput,
+                        levelCompactInfo, levelEncoder, levelTileset), pool))
+                .collect(Collectors.toList());
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).join();
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+
+        System.out.println("Levels of " + directory + ":");
+        int failed = 0;
+        for (CompletableFuture<Result> future : results) {
+            Result result = future.join();
+            if (result.error != null)
+                failed++;
+            System.out.println(String.format(Locale.ROOT, "%-6s %9.1f ms (load %.1f, check %.1f, save %.1f)  %s%s",
+                    result.error == null ? "OK" : "FAILED", millis(result.loadNanos + result.checkNanos + result.saveNanos),
+                    millis(result.loadNanos), millis(result.checkNanos), millis(result.saveNanos),
+                    directory.relativize(result.level), result.error == null ? "" : " : " + result.error));
+        }
+        System.out.println(String.format(Locale.ROOT, "%d level(s) in %.1f ms, %d failed", levels.size(), millis(elapsed), failed));
+
+        if (failed > 0)
+            System.exit(1);
+    }
+
+    /**
+     * @param name (String): "fast", "default" or "max"
+     * @return (PngEncoder): the encoder of this name
+     */
+    private static PngEncoder encoderOf(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "fast": return PngEncoder.FAST;
+            case "default": return PngEncoder.DEFAULT;
+            case "max": return PngEncoder.MAX_COMPRESSION;
+            default: throw new IllegalArgumentException("unknown png compression '" + name + "': " + USAGE);
+        }
+    }
+
+    /**
+     * @param directory (Path): the directory of the levels, absolute (not null)
+     * @param output (Path): the directory of the written levels, absolute (null if in place)
+     * @return (List of Path): the lve and lvb files of the directory and its sub-directories, sorted, except the ones
+     * of the output directory if it is a sub-directory
+     * @throws IOException if the directory cannot be walked
+     */
+    private static List<Path> findLevels(Path directory, Path output) throws IOException {
+        boolean skipOutput = output != null && !output.equals(directory) && output.startsWith(directory);
+        try (Stream<Path> paths = Files.walk(directory)) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(path -> {
+                        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+                        return name.endsWith(".lve") || name.endsWith(".lvb");
+                    })
+                    .filter(path -> !skipOutput || !path.startsWith(output))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Load, validate, save and export a level
+     * @param directory (Path): the directory of the levels, absolute (not null)
+     * @param level (Path): the level, in the directory (not null)
+     * @param action (Action): the action on the level (not null)
+     * @param output (Path): the directory of the written levels, absolute (null if in place)
+     * @param compactInfo (boolean): true to write the Info section of a lve level in its run-length form
+     * @param encoder (PngEncoder): the encoder of the png layers of a lve level and of the atlases (not null)
+     * @param tileset (boolean): true to export the tilesets of the level
+     * @return (Result): the result of the level, never null (the errors are reported in it)
+     */
+    private static Result process(Path directory, Path level, Action action, Path output, boolean compactInfo,
+                                  PngEncoder encoder, boolean tileset) {
+
+        long start = System.nanoTime();
+        LayerImage image;
+        try {
+            image = LayerImage.loadFromFile(level.toFile(), false);
+        } catch (IOException | RuntimeException e) {
+            return new Result(level, e.getMessage() != null ? e.getMessage() : e.toString(), System.nanoTime() - start, 0, 0);
+        }
+        long loaded = System.nanoTime();
+
+        String error = check(image);
+        long checked = System.nanoTime();
+
+        File target = targetOf(directory, level, action, output);
+        if (error == null && action != Action.VALIDATE && action != Action.TILESET) {
+            // A new image does not know the files it was loaded from: all of its files are written (see LayerImage.save)
+            LayerImage written = new LayerImage(image.background, image.foreground, image.behavior);
+            if (!LayerImage.saveToFile(written, target, compactInfo, encoder, false))
+                error = "the save into " + target + " fails";
+        }
+        if (error == null && tileset) {
+            try {
+                TilesetExport.export(image, target, encoder, false);
+            } catch (IOException | RuntimeException e) {
+                error = "the tileset export fails : " + (e.getMessage() != null ? e.getMessage() : e.toString());
+            }
+        }
+        long saved = System.nanoTime();
+
+        return new Result(level, error, loaded - start, checked - loaded, saved - checked);
+    }
+
+    /**
+     * @param image (LayerImage): a loaded level (not null)
+     * @return (String): why the level is not valid, null if it is valid
+     */
+    private static String check(LayerImage image) {
+        if (!image.isValid())
+            return "the layers dimensions are not consistent (" + image.pixelWidth + "x" + image.pixelHeight
+                    + " pixels for " + image.cellWidth + "x" + image.cellHeight + " cells)";
+        int unknownCount = new BehaviorGrid(image.behavior).getUnknownCount();
+        if (unknownCount > 0)
+            return unknownCount + " cell(s) have a behavior color which is not in the color map";
+        return null;
+    }
+
+    /**
+     * @param directory (Path): the directory of the levels, absolute (not null)
+     * @param level (Path): the level, in the directory (not null)
+     * @param action (Action): the action on the level (not null)
+     * @param output (Path): the directory of the written levels, absolute (null if in place)
+     * @return (File): the file the level is saved into (or exported next to), in the format of the level unless it is
+     * converted
+     */
+    private static File targetOf(Path directory, Path level, Action action, Path output) {
+        Path target = output == null ? level : output.resolve(directory.relativize(level));
+        String name = target.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String extension = action == Action.LVE ? ".lve" : action == Action.LVB ? ".lvb" : name.substring(dot);
+        return target.resolveSibling(name.substring(0, dot) + extension).toFile();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    /**
+     * The Result of the processing of a level
+     */
+    private static final class Result {
+
+        private final Path level;
+        /// Why the level is not valid or cannot be saved (null if it is valid and saved)
+        private final String error;
+        /// The durations of the loading, the validation and the save
+        private final long loadNanos, checkNanos, saveNanos;
+
+        Result(Path level, String error, long loadNanos, long checkNanos, long saveNanos) {
+            this.level = level;
+            this.error = error;
+            this.loadNanos = loadNanos;
+            this.checkNanos = checkNanos;
+            this.saveNanos = saveNanos;
+        }
+    }
+}
@@ -5,6 +5,8 @@ import ch.epfl.blchatel.leveleditor.swing.ContentPane;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.File;
 
 /**
@@ -25,14 +27,14 @@ public class LevelEditor {
     /**
      * Main Entry Point
      * @param args (Array of String) : Arguments
-     *             [0] - absolute path a .lve file to open with the editor (optional)
+     *             [0] - absolute path a .lve (or .lvb) file to open with the editor (optional)
      */
     public static void main(String[] args){
 
         if(args.length > 1)
-            throw new IllegalArgumentException(appName + " " + versionId + " is waiting either none or one single '.lve' argument");
-        if(args.length == 1 && !args[0].toLowerCase().endsWith(".lve"))
-            throw new IllegalArgumentException(appName + " " + versionId + " is waiting either none or one single '.lve' argument");
+            throw new IllegalArgumentException(appName + " " + versionId + " is waiting either none or one single '.lve' or '.lvb' argument");
+        if(args.length == 1 && !args[0].toLowerCase().endsWith(".lve") && !args[0].toLowerCase().endsWith(".lvb"))
+            throw new IllegalArgumentException(appName + " " + versionId + " is waiting either none or one single '.lve' or '.lvb' argument");
 
         File file = null;
         if(args.length == 1)
@@ -50,6 +52,13 @@ public class LevelEditor {
         ContentPane contentPane = new ContentPane(WINDOW_DIMENSION);
         contentPane.initArgsDisplay(file);
         frame.setContentPane(contentPane);
+        // A background save is completed before the application exits
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                contentPane.awaitSave();
+            }
+        });
         frame.setVisible(true);
     }
 }
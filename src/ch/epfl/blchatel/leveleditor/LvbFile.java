@@ -0,0 +1,467 @@
+package ch.epfl.blchatel.leveleditor;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A LvbFile is a level stored in a single binary file, read through a memory mapping
+ * - header: "LVB1", version, pixel and cell dimensions, tile size, number of tiled layers (1 without foreground)
+ * - the behavior colors, deflated
+ * - the tile index: for each tiled layer, the offset and length of each tile in row-major order (0 for an empty tile)
+ * - the tiles, each one deflated on its own (a tile shared by several cells is stored once)
+ * The integers are big-endian, the pixels are ARGB integers
+ * Notice : opening a lvb file only reads its header, index and behavior, each tile being decoded when first read
+ * (i.e. when first displayed), and the tiles still read from the file are copied as they are by the next save
+ * Notice : a mapped file cannot be replaced on some systems (i.e. Windows) until its mapping is garbage collected, a
+ * save into it then overwrites it in place (see overwrite)
+ */
+public final class LvbFile {
+
+    private final static byte[] MAGIC = {'L', 'V', 'B', '1'};
+    private final static int VERSION = 1;
+    private final static int HEADER_SIZE = 36;
+    private final static int INDEX_ENTRY_SIZE = 12;
+    private final static int TILE_SIZE = TiledLayer.TILE_SIZE;
+    /// The mappings of the read files, as long as their tiles are used
+    private final static Set<Mapping> MAPPINGS = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    private LvbFile() {}
+
+    /**
+     * Open a lvb file
+     * Notice : the file is mapped, its tiles being decoded on demand
+     * @param file (File): the lvb file (not null)
+     * @return (LayerImage): the opened image (not null)
+     * @throws IOException if the file cannot be read or is not a valid lvb file
+     */
+    public static LayerImage read(File file) throws IOException {
+
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Error while reading " + file + " : file is too large");
+            // The mapping stays valid once the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC) || buffer.getInt() != VERSION)
+                throw new IOException("not a lvb file (or an unknown version)");
+
+            int pixelWidth = buffer.getInt(), pixelHeight = buffer.getInt();
+            int cellWidth = buffer.getInt(), cellHeight = buffer.getInt();
+            int tileSize = buffer.getInt(), layerCount = buffer.getInt();
+            if (pixelWidth < 1 || pixelHeight < 1 || cellWidth < 1 || cellHeight < 1)
+                throw new IOException("invalid dimensions");
+            if (tileSize != TILE_SIZE || layerCount < 1 || layerCount > 2)
+                throw new IOException("invalid tile size or layer count");
+
+            // Behavior colors
+            int behaviorLength = buffer.getInt();
+            if (behaviorLength < 0 || behaviorLength > buffer.remaining())
+                throw new IOException("truncated behavior");
+            byte[] behaviorBytes = new byte[behaviorLength];
+            buffer.get(behaviorBytes);
+            BufferedImage behavior = new BufferedImage(cellWidth, cellHeight, BufferedImage.TYPE_INT_ARGB);
+            inflateInts(behaviorBytes, SrcOver.dataOf(behavior));
+
+            // Tile index, every entry being checked so that a tile read later cannot go outside the file
+            int tileCount = ((pixelWidth + TILE_SIZE - 1) / TILE_SIZE) * ((pixelHeight + TILE_SIZE - 1) / TILE_SIZE);
+            if ((long) layerCount * tileCount * INDEX_ENTRY_SIZE > buffer.remaining())
+                throw new IOException("truncated tile index");
+            int dataStart = buffer.position() + layerCount * tileCount * INDEX_ENTRY_SIZE;
+            Mapping mapping = new Mapping(file, buffer);
+            TiledLayer[] layers = new TiledLayer[layerCount];
+            for (int layer = 0; layer < layerCount; layer++) {
+                long[] offsets = new long[tileCount];
+                int[] lengths = new int[tileCount];
+                for (int i = 0; i < tileCount; i++) {
+                    offsets[i] = buffer.getLong();
+                    lengths[i] = buffer.getInt();
+                    if (lengths[i] < 0 || lengths[i] > 0 && (offsets[i] < dataStart || offsets[i] + lengths[i] > buffer.capacity()))
+                        throw new IOException("tile " + i + " is outside the file");
+                }
+                layers[layer] = new TiledLayer(pixelWidth, pixelHeight, new MappedTiles(mapping, offsets, lengths));
+            }
+            MAPPINGS.add(mapping);
+
+            return new LayerImage(layers[0], layerCount > 1 ? layers[1] : null, behavior);
+        } catch (IOException e) {
+            throw new IOException("Error while reading " + file + " : " + e.getMessage(), e);
+        } catch (RuntimeException e) {
+            // i.e. BufferUnderflowException
+            throw new IOException("Error while reading " + file + " : file is truncated", e);
+        }
+    }
+
+    /**
+     * Write an image as a lvb file
+     * - the tiles are deflated in parallel, then written one after the other
+     * - the tiles still read from a lvb file are copied without being decoded
+     * - the file is written into a temporary file next to it, then renamed (atomically when the file system allows
+     *   it): a failed write leaves the previous file untouched
+     * - if the file cannot be replaced because this process maps it (i.e. the level is saved into the file it was
+     *   read from, on Windows), it is overwritten in place from the temporary file instead (see overwrite)
+     * Notice : the image must not be edited during the write, write a snapshot of the edited image
+     * @param image (LayerImage): the image to write (not null)
+     * @param file (Path): the lvb file (not null)
+     * @param listener (LayerImage.SaveListener): the listener of the progress, never told the end (may be null)
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(LayerImage image, Path file, LayerImage.SaveListener listener) throws IOException {
+
+        TiledLayer[] layers = image.foreground == null
+                ? new TiledLayer[]{image.background} : new TiledLayer[]{image.background, image.foreground};
+        int tileCount = image.background.getNumXTiles() * image.background.getNumYTiles();
+
+        // Find the distinct tiles: the shared tiles (or the tiles shared in the source file) are written once
+        List<Chunk> chunks = new ArrayList<>();
+        Chunk[][] index = new Chunk[layers.length][tileCount];
+        Map<BufferedImage, Chunk> byTile = new IdentityHashMap<>();
+        Map<Mapping, Map<Long, Chunk>> byFile = new IdentityHashMap<>();
+        for (int layer = 0; layer < layers.length; layer++) {
+            for (int i = 0; i < tileCount; i++) {
+                TiledLayer.TileSource source = layers[layer].sourceOf(i);
+                Chunk chunk;
+                if (source instanceof MappedTiles) {
+                    MappedTiles mapped = (MappedTiles) source;
+                    Map<Long, Chunk> sourceChunks = byFile.computeIfAbsent(mapped.mapping, m -> new HashMap<>());
+                    chunk = sourceChunks.get(mapped.offsets[i]);
+                    if (chunk == null) {
+                        chunk = new Chunk(null, mapped.chunk(i));
+                        sourceChunks.put(mapped.offsets[i], chunk);
+                        chunks.add(chunk);
+                    }
+                } else {
+                    BufferedImage tile = layers[layer].tileAt(i);
+                    if (tile == null)
+                        continue;
+                    chunk = byTile.get(tile);
+                    if (chunk == null) {
+                        chunk = new Chunk(tile, null);
+                        byTile.put(tile, chunk);
+                        chunks.add(chunk);
+                    }
+                }
+                index[layer][i] = chunk;
+            }
+        }
+
+        // Deflate the tiles (the progress goes to one half), then the behavior
+        int[] deflated = {0};
+        chunks.parallelStream().filter(chunk -> chunk.data == null).forEach(chunk -> {
+            chunk.data = ByteBuffer.wrap(deflateInts(SrcOver.dataOf(chunk.tile)));
+            if (listener != null) {
+                synchronized (deflated) {
+                    listener.onSaveProgress(0.5 * ++deflated[0] / chunks.size());
+                }
+            }
+        });
+        byte[] behavior = deflateInts(image.behavior.getRGB(0, 0, image.cellWidth, image.cellHeight, null, 0, image.cellWidth));
+
+        // Lay the chunks out after the index
+        long offset = HEADER_SIZE + behavior.length + (long) layers.length * tileCount * INDEX_ENTRY_SIZE;
+        for (Chunk chunk : chunks) {
+            chunk.offset = offset;
+            offset += chunk.data.remaining();
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + behavior.length + layers.length * tileCount * INDEX_ENTRY_SIZE);
+        header.put(MAGIC).putInt(VERSION)
+                .putInt(image.pixelWidth).putInt(image.pixelHeight).putInt(image.cellWidth).putInt(image.cellHeight)
+                .putInt(TILE_SIZE).putInt(layers.length)
+                .putInt(behavior.length).put(behavior);
+        for (Chunk[] layerIndex : index) {
+            for (Chunk chunk : layerIndex) {
+                header.putLong(chunk == null ? 0 : chunk.offset);
+                header.putInt(chunk == null ? 0 : chunk.data.remaining());
+            }
+        }
+        header.flip();
+
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".saving");
+        boolean overwriting = false;
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                writeFully(channel, header);
+                for (int i = 0; i < chunks.size(); i++) {
+                    writeFully(channel, chunks.get(i).data.duplicate());
+                    if (listener != null)
+                        listener.onSaveProgress(0.5 + 0.5 * (i + 1) / chunks.size());
+                }
+            }
+            try {
+                try {
+                    Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                if (!isMapped(file))
+                    throw e;
+                overwriting = true;
+                overwrite(temporaryFile, file);
+            }
+        } catch (IOException e) {
+            // A failed overwrite leaves the file partly written: the complete temporary file is kept
+            if (!overwriting)
+                Files.deleteIfExists(temporaryFile);
+            throw new IOException("Error while writing " + file + (overwriting ? " (the level is kept in "
+                    + temporaryFile + ")" : "") + " : " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @param file (Path): a file (not null)
+     * @return (boolean): true if the tiles of a lvb file read from this file may still be read from its mapping
+     */
+    private static boolean isMapped(Path file) {
+        Path path = file.toAbsolutePath().normalize();
+        synchronized (MAPPINGS) {
+            for (Mapping mapping : MAPPINGS) {
+                if (mapping.path.equals(path))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Overwrite a file mapped by this process with a written file, when the mapped file cannot be replaced
+     * - the mappings of the file are first copied to the heap, so that the tiles not decoded yet stay readable
+     * - the file is written in place, then truncated if the system allows it (the bytes after the last tile of a lvb
+     *   file are never read)
+     * Notice : unlike a rename, the overwrite is not atomic (see write)
+     * @param writtenFile (Path): the complete written file, deleted once copied (not null)
+     * @param file (Path): the mapped file (not null)
+     * @throws IOException if the file cannot be overwritten
+     */
+    private static void overwrite(Path writtenFile, Path file) throws IOException {
+
+        Path path = file.toAbsolutePath().normalize();
+        synchronized (MAPPINGS) {
+            for (Mapping mapping : MAPPINGS) {
+                if (mapping.path.equals(path))
+                    mapping.detach();
+            }
+        }
+
+        try (FileChannel source = FileChannel.open(writtenFile, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            long size = source.size();
+            long position = 0;
+            while (position < size)
+                position += source.transferTo(position, size - position, target.position(position));
+            try {
+                target.truncate(size);
+            } catch (IOException e) {
+                // Still mapped (until its mapping is garbage collected): the unused bytes are left at the end
+            }
+            target.force(true);
+        }
+        Files.deleteIfExists(writtenFile);
+    }
+
+    /**
+     * Convert a level between the lve and lvb forms
+     * @param args (Array of String): Assume of length 2
+     *             [0] - path to the read level (.lve or .lvb)
+     *             [1] - path to the written level (.lve or .lvb)
+     */
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 2)
+            throw new IllegalArgumentException("two arguments ('read level' 'written level') are expected");
+
+        LayerImage image = LayerImage.loadFromFile(new File(args[0]));
+        if (!LayerImage.saveToFile(image, new File(args[1])))
+            System.exit(1);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * @param values (Array of int): the integers to deflate (not null)
+     * @return (Array of byte): the deflated big-endian bytes of the integers
+     */
+    private static byte[] deflateInts(int[] values) {
+
+        byte[] bytes = new byte[values.length * 4];
+        ByteBuffer.wrap(bytes).asIntBuffer().put(values);
+
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] out = new byte[Math.max(64, bytes.length / 4)];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == out.length)
+                    out = Arrays.copyOf(out, out.length * 2);
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            return Arrays.copyOf(out, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @param deflated (Array of byte): the deflated big-endian bytes (not null)
+     * @param values (Array of int): the destination, whose whole length must be inflated (not null)
+     * @throws IOException if the bytes are not valid or do not have the length of the destination
+     */
+    private static void inflateInts(byte[] deflated, int[] values) throws IOException {
+
+        byte[] bytes = new byte[values.length * 4];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            int length = 0;
+            while (length < bytes.length && !inflater.finished() && !inflater.needsInput())
+                length += inflater.inflate(bytes, length, bytes.length - length);
+            if (length != bytes.length || !inflater.finished())
+                throw new IOException("invalid deflated data");
+        } catch (DataFormatException e) {
+            throw new IOException("invalid deflated data", e);
+        } finally {
+            inflater.end();
+        }
+        ByteBuffer.wrap(bytes).asIntBuffer().get(values);
+    }
+
+    /**
+     * A Chunk is a distinct tile of a written file: a tile to deflate, or a tile copied from a read file
+     */
+    private static final class Chunk {
+
+        /// The tile (null if copied)
+        private final BufferedImage tile;
+        /// The deflated tile (null until deflated), and its offset in the written file
+        private ByteBuffer data;
+        private long offset;
+
+        Chunk(BufferedImage tile, ByteBuffer data) {
+            this.tile = tile;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The Mapping of a read file, shared by the tiles of its layers (and their copies)
+     * Notice : it is copied to the heap before the file is overwritten in place (see overwrite)
+     */
+    private static final class Mapping {
+
+        /// The read file, for the error messages, and its absolute path
+        private final File file;
+        private final Path path;
+        /// The content of the whole file, mapped until detached (never read through its position, see chunk)
+        private ByteBuffer buffer;
+
+        Mapping(File file, ByteBuffer buffer) {
+            this.file = file;
+            this.path = file.toPath().toAbsolutePath().normalize();
+            this.buffer = buffer;
+        }
+
+        /**
+         * @param offset (long): the offset of a chunk in the file
+         * @param bytes (Array of byte): the destination, filled with the chunk of its length (not null)
+         */
+        synchronized void read(long offset, byte[] bytes) {
+            // A duplicate has its own position, the buffer being shared by the tiles
+            ByteBuffer chunk = buffer.duplicate();
+            chunk.position((int) offset);
+            chunk.get(bytes);
+        }
+
+        /// Copy the content to the heap, the file being overwritten
+        synchronized void detach() {
+            if (!buffer.isDirect())
+                return;
+            ByteBuffer content = buffer.duplicate();
+            content.clear();
+            buffer = ByteBuffer.allocate(content.capacity()).put(content);
+        }
+    }
+
+    /**
+     * The MappedTiles are the tiles of a layer of a read file, decoded from its mapping on demand
+     */
+    private static final class MappedTiles implements TiledLayer.TileSource {
+
+        /// The mapping of the read file
+        private final Mapping mapping;
+        /// The offset and length of each tile (0 for the empty tiles)
+        private final long[] offsets;
+        private final int[] lengths;
+
+        MappedTiles(Mapping mapping, long[] offsets, int[] lengths) {
+            this.mapping = mapping;
+            this.offsets = offsets;
+            this.lengths = lengths;
+        }
+
+        /**
+         * @param index (int): index of a tile held by the file
+         * @return (ByteBuffer): the deflated tile, a copy of the chunk of the mapping (the file may be overwritten
+         * once the chunk is written elsewhere, see write)
+         */
+        ByteBuffer chunk(int index) {
+            byte[] deflated = new byte[lengths[index]];
+            mapping.read(offsets[index], deflated);
+            return ByteBuffer.wrap(deflated);
+        }
+
+        /// MappedTiles implements TiledLayer.TileSource
+
+        @Override
+        public boolean hasTile(int index) {
+            return lengths[index] > 0;
+        }
+
+        @Override
+        public BufferedImage readTile(int index) {
+            byte[] deflated = new byte[lengths[index]];
+            mapping.read(offsets[index], deflated);
+            BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+            try {
+                inflateInts(deflated, SrcOver.dataOf(tile));
+            } catch (IOException e) {
+                throw new UncheckedIOException(new IOException(
+                        "Error while reading the tile " + index + " of " + mapping.file + " : " + e.getMessage(), e));
+            }
+            return tile;
+        }
+    }
+}
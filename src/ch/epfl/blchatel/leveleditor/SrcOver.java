@@ -0,0 +1,212 @@
+package ch.epfl.blchatel.leveleditor;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+/**
+ * SrcOver composites non premultiplied ARGB pixels directly between int rasters
+ * - the rows of a source can be classified once (opaque, transparent or mixed): the opaque rows are then copied
+ *   and the transparent ones skipped, only the mixed rows being blended pixel by pixel
+ * - nothing is allocated while compositing
+ */
+public final class SrcOver {
+
+    /// Kinds of a row (or of a whole source)
+    public final static byte MIXED = 0, OPAQUE = 1, TRANSPARENT = 2;
+
+    private SrcOver() {}
+
+    /**
+     * Composite two pixels
+     * @param dst (int): the destination ARGB value
+     * @param src (int): the source ARGB value, drawn over the destination
+     * @return (int): the composited ARGB value
+     */
+    public static int blend(int dst, int src) {
+
+        int sa = src >>> 24;
+        if (sa == 0xff)
+            return src;
+        if (sa == 0)
+            return dst;
+        int da = dst >>> 24;
+        if (da == 0)
+            return src;
+
+        if (da == 0xff) {
+            // Opaque destination (i.e. most of the backgrounds): the result is opaque, no division needed
+            // The red and blue channels are weighted together, each in its own 16 bits lane
+            int dw = 0xff - sa;
+            int rb = (src & 0xff00ff) * sa + (dst & 0xff00ff) * dw + 0x800080;
+            rb = ((rb + ((rb >> 8) & 0xff00ff)) >> 8) & 0xff00ff;
+            int g = div255(((src >> 8) & 0xff) * sa + ((dst >> 8) & 0xff) * dw);
+            return 0xff000000 | rb | g << 8;
+        }
+
+        // Weight of the destination, and resulting alpha
+        int dw = div255(da * (0xff - sa));
+        int a = sa + dw;
+        int r = (((src >> 16) & 0xff) * sa + ((dst >> 16) & 0xff) * dw + a / 2) / a;
+        int g = (((src >> 8) & 0xff) * sa + ((dst >> 8) & 0xff) * dw + a / 2) / a;
+        int b = ((src & 0xff) * sa + (dst & 0xff) * dw + a / 2) / a;
+        return a << 24 | r << 16 | g << 8 | b;
+    }
+
+    /**
+     * Classify the rows of a source region
+     * @param pixels (Array of int): the ARGB pixels (not null)
+     * @param offset (int): index of the top-left pixel of the region
+     * @param scan (int): scanline stride of the pixels
+     * @param width (int): width of the region
+     * @param height (int): height of the region
+     * @return (Array of byte): the kind of each row (OPAQUE, TRANSPARENT or MIXED)
+     */
+    public static byte[] classifyRows(int[] pixels, int offset, int scan, int width, int height) {
+
+        byte[] rows = new byte[height];
+        for (int y = 0; y < height; y++) {
+            int start = offset + y * scan;
+            int and = 0xff, or = 0;
+            for (int i = start; i < start + width; i++) {
+                int alpha = pixels[i] >>> 24;
+                and &= alpha;
+                or |= alpha;
+            }
+            rows[y] = and == 0xff ? OPAQUE : or == 0 ? TRANSPARENT : MIXED;
+        }
+        return rows;
+    }
+
+    /**
+     * @param rows (Array of byte): the kind of each row (not null)
+     * @return (byte): OPAQUE or TRANSPARENT if all the rows are, MIXED otherwise
+     */
+    public static byte kindOf(byte[] rows) {
+        if (rows.length == 0)
+            return TRANSPARENT;
+        byte kind = rows[0];
+        for (byte row : rows) {
+            if (row != kind)
+                return MIXED;
+        }
+        return kind;
+    }
+
+    /**
+     * Composite a source region over a destination region of the same size
+     * @param src (Array of int): the source ARGB pixels (not null)
+     * @param srcOffset (int): index of the top-left pixel of the source region
+     * @param srcScan (int): scanline stride of the source
+     * @param rows (Array of byte): the kind of each row of the source region (null if unknown)
+     * @param dst (Array of int): the destination ARGB pixels (not null)
+     * @param dstOffset (int): index of the top-left pixel of the destination region
+     * @param dstScan (int): scanline stride of the destination
+     * @param width (int): width of the regions
+     * @param height (int): height of the regions
+     */
+    public static void composite(int[] src, int srcOffset, int srcScan, byte[] rows,
+                                 int[] dst, int dstOffset, int dstScan, int width, int height) {
+
+        for (int y = 0; y < height; y++) {
+            int s = srcOffset + y * srcScan;
+            int d = dstOffset + y * dstScan;
+
+            byte kind = rows == null ? MIXED : rows[y];
+            if (kind == TRANSPARENT)
+                continue;
+            if (kind == OPAQUE) {
+                System.arraycopy(src, s, dst, d, width);
+                continue;
+            }
+            for (int x = 0; x < width; x++)
+                dst[d + x] = blend(dst[d + x], src[s + x]);
+        }
+    }
+
+    /**
+     * Draw (source over) an image on another one, directly on their rasters when both are packed ARGB images
+     * (otherwise through Graphics2D)
+     * @param src (BufferedImage): the drawn image (not null)
+     * @param dst (BufferedImage): the destination image (not null)
+     * @param x (int): x-coordinate of the top-left corner of the drawn image into the destination
+     * @param y (int): y-coordinate of the top-left corner of the drawn image into the destination
+     */
+    public static void draw(BufferedImage src, BufferedImage dst, int x, int y) {
+
+        if (!isPackedArgb(src) || !isPackedArgb(dst)) {
+            Graphics2D g = dst.createGraphics();
+            g.drawImage(src, x, y, null);
+            g.dispose();
+            return;
+        }
+
+        // Clip the drawn image to the destination
+        int x0 = Math.max(0, x), y0 = Math.max(0, y);
+        int x1 = Math.min(dst.getWidth(), x + src.getWidth());
+        int y1 = Math.min(dst.getHeight(), y + src.getHeight());
+        if (x0 >= x1 || y0 >= y1)
+            return;
+
+        int srcScan = ((SinglePixelPackedSampleModel) src.getSampleModel()).getScanlineStride();
+        int dstScan = ((SinglePixelPackedSampleModel) dst.getSampleModel()).getScanlineStride();
+        composite(dataOf(src), (y0 - y) * srcScan + (x0 - x), srcScan, null,
+                dataOf(dst), y0 * dstScan + x0, dstScan, x1 - x0, y1 - y0);
+    }
+
+    /**
+     * @param image (BufferedImage): an image (not null)
+     * @return (boolean): true if the image is an ARGB image packed in an int array, its pixel (x, y) being at
+     * index y * scanline stride + x
+     */
+    static boolean isPackedArgb(BufferedImage image) {
+        return image.getType() == BufferedImage.TYPE_INT_ARGB
+                && image.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && image.getRaster().getSampleModelTranslateX() == 0
+                && image.getRaster().getSampleModelTranslateY() == 0
+                && image.getRaster().getDataBuffer().getOffset() == 0;
+    }
+
+    /**
+     * @param image (BufferedImage): an image (not null)
+     * @return (boolean): true if the image is an ABGR image packed in a byte array (as decoded from the usual RGBA png),
+     * the 4 bytes of its pixel (x, y) being at index (y * width + x) * 4
+     */
+    static boolean isPackedAbgr(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        return image.getType() == BufferedImage.TYPE_4BYTE_ABGR
+                && raster.getParent() == null
+                && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0
+                && raster.getDataBuffer().getOffset() == 0
+                && ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride() == image.getWidth() * 4;
+    }
+
+    /**
+     * @param image (BufferedImage): an image (not null)
+     * @return (boolean): true if the image is a BGR image packed in a byte array (as decoded from an RGB png, i.e. an
+     * opaque layer saved by PngEncoder), the 3 bytes of its pixel (x, y) being at index (y * width + x) * 3
+     */
+    static boolean isPackedBgr(BufferedImage image) {
+        WritableRaster raster = image.getRaster();
+        return image.getType() == BufferedImage.TYPE_3BYTE_BGR
+                && raster.getParent() == null
+                && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0
+                && raster.getDataBuffer().getOffset() == 0
+                && ((ComponentSampleModel) raster.getSampleModel()).getScanlineStride() == image.getWidth() * 3;
+    }
+
+    static int[] dataOf(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /** @return (int): v / 255 rounded, for 0 <= v <= 255 * 255 */
+    private static int div255(int v) {
+        v += 128;
+        return (v + (v >> 8)) >> 8;
+    }
+}
@@ -0,0 +1,150 @@
+package ch.epfl.blchatel.leveleditor;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * Benchmark of the brush stamping on the three layers of a level
+ * - the previous path draws the brush with one Graphics2D per layer on the full-size layer images, as the former
+ *   DisplayPanel.drawBrush did
+ * - the current path is LayerImage.drawBrush, compositing with SrcOver on the tiles and on the behavior raster
+ * Notice : the tiles of the level are all allocated, and the stamps are at the same random cells for both paths
+ */
+public class StampBenchmark {
+
+    /// Size of the stamped level in cells
+    private final static int LEVEL_CELLS = 32;
+    private final static int WARMUP_STAMPS = 20000;
+    private final static int STAMPS = 100000;
+
+    /**
+     * Compare the brush stamping through Graphics2D.drawImage with LayerImage.drawBrush
+     * @param args (Array of String): Assume of length 0 or 1
+     *             [0] - path to a background brush png, also used as foreground (optional)(default=generated brush of
+     *             2x2 cells with opaque, transparent and translucent rows)
+     */
+    public static void main(String[] args) throws IOException {
+
+        BufferedImage brushImage = args.length > 0 ? ImageIO.read(new File(args[0])) : buildBrush();
+        if (brushImage == null)
+            throw new IllegalArgumentException("the brush cannot be read: " + args[0]);
+
+        int resolution = LayerImage.CELL_RESOLUTION;
+        int brushCellsX = brushImage.getWidth() / resolution;
+        int brushCellsY = brushImage.getHeight() / resolution;
+        BufferedImage brushBehavior = buildBehavior(brushCellsX, brushCellsY, 2);
+        System.out.println("Brush of " + brushCellsX + "x" + brushCellsY + " cells, level of "
+                + LEVEL_CELLS + "x" + LEVEL_CELLS + " cells, " + STAMPS + " stamps");
+
+        // Graphics2D path: one graphics context per layer, on the full-size images
+        BufferedImage background = buildLevel(0);
+        BufferedImage foreground = buildLevel(1);
+        BufferedImage behavior = buildBehavior(LEVEL_CELLS, LEVEL_CELLS, 3);
+        BufferedImage brushArgb = toArgb(brushImage);
+        Runnable graphicsPath = new Runnable() {
+            private final Random random = new Random(0);
+            @Override
+            public void run() {
+                int cellX = random.nextInt(LEVEL_CELLS - brushCellsX + 1);
+                int cellY = random.nextInt(LEVEL_CELLS - brushCellsY + 1);
+                Graphics2D bGr = background.createGraphics();
+                bGr.drawImage(brushArgb, cellX * resolution, cellY * resolution, null);
+                bGr.dispose();
+                Graphics2D fGr = foreground.createGraphics();
+                fGr.drawImage(brushArgb, cellX * resolution, cellY * resolution, null);
+                fGr.dispose();
+                Graphics2D hGr = behavior.createGraphics();
+                hGr.drawImage(brushBehavior, cellX, cellY, null);
+                hGr.dispose();
+            }
+        };
+
+        // LayerImage.drawBrush path, the brush being built as the brushes of the editor
+        LayerImage level = new LayerImage(new TiledLayer(buildLevel(0)), new TiledLayer(buildLevel(1)),
+                buildBehavior(LEVEL_CELLS, LEVEL_CELLS, 3));
+        LayerImage brush = new LayerImage(brushImage, brushImage, brushBehavior);
+        Runnable drawBrushPath = new Runnable() {
+            private final Random random = new Random(0);
+            @Override
+            public void run() {
+                level.drawBrush(brush,
+                        random.nextInt(LEVEL_CELLS - brushCellsX + 1),
+                        random.nextInt(LEVEL_CELLS - brushCellsY + 1), true, true, true);
+            }
+        };
+
+        run("Graphics2D.drawImage", graphicsPath);
+        run("LayerImage.drawBrush", drawBrushPath);
+    }
+
+    private static void run(String name, Runnable stamp) {
+
+        for (int i = 0; i < WARMUP_STAMPS; i++)
+            stamp.run();
+
+        long collections = collectionCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < STAMPS; i++)
+            stamp.run();
+        long time = System.nanoTime() - start;
+
+        System.out.printf("%s: %8.2f us/stamp, %d garbage collections%n",
+                name, time / 1000.0 / STAMPS, collectionCount() - collections);
+    }
+
+    private static long collectionCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    private static BufferedImage toArgb(BufferedImage image) {
+        BufferedImage argb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D bGr = argb.createGraphics();
+        bGr.drawImage(image, 0, 0, null);
+        bGr.dispose();
+        return argb;
+    }
+
+    /** @return (BufferedImage): a full-size layer of LEVEL_CELLS x LEVEL_CELLS cells of opaque random pixels */
+    private static BufferedImage buildLevel(int seed) {
+        int size = LEVEL_CELLS * LayerImage.CELL_RESOLUTION;
+        BufferedImage level = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(seed);
+        int[] pixels = SrcOver.dataOf(level);
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = 0xff000000 | random.nextInt(0x1000000);
+        return level;
+    }
+
+    /** @return (BufferedImage): a behavior layer of opaque random colors */
+    private static BufferedImage buildBehavior(int cellsX, int cellsY, int seed) {
+        BufferedImage behavior = new BufferedImage(cellsX, cellsY, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(seed);
+        for (int y = 0; y < cellsY; y++)
+            for (int x = 0; x < cellsX; x++)
+                behavior.setRGB(x, y, 0xff000000 | random.nextInt(0x1000000));
+        return behavior;
+    }
+
+    /** @return (BufferedImage): a brush of 2x2 cells, a third of its rows opaque, a third transparent, a third translucent */
+    private static BufferedImage buildBrush() {
+        int size = 2 * LayerImage.CELL_RESOLUTION;
+        BufferedImage brush = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(1);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int alpha = y % 3 == 0 ? 0xff : y % 3 == 1 ? 0 : random.nextInt(0x100);
+                brush.setRGB(x, y, alpha << 24 | random.nextInt(0x1000000));
+            }
+        }
+        return brush;
+    }
+}
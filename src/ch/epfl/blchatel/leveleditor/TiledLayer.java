@@ -0,0 +1,733 @@
+package ch.epfl.blchatel.leveleditor;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A TiledLayer is an ARGB image layer stored as a grid of square tiles (one tile per cell)
+ * - the empty (never drawn) tiles are not allocated
+ * - the tiles are copy-on-write: they may be shared between layers, and are copied before the first write
+ * - it is a RenderedImage, so it can be drawn with Graphics2D.drawRenderedImage and written with ImageIO
+ * - each change is counted, so a layer can tell which tiles changed since a former state (i.e. since a save)
+ * - the tiles may be read lazily from a TileSource (i.e. a mapped file), each tile being decoded when first read
+ */
+public final class TiledLayer implements RenderedImage {
+
+    /// Side of a tile in pixel
+    public final static int TILE_SIZE = LayerImage.CELL_RESOLUTION;
+
+    private final static int[] MASKS = {0x00ff0000, 0x0000ff00, 0x000000ff, 0xff000000};
+    private final static ColorModel COLOR_MODEL = ColorModel.getRGBdefault();
+    private final static SampleModel SAMPLE_MODEL = new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, TILE_SIZE, TILE_SIZE, MASKS);
+    /// Content of the empty tiles (must never be written)
+    private final static DataBufferInt EMPTY = new DataBufferInt(TILE_SIZE * TILE_SIZE);
+
+    /// Source of the tiles of a layer read lazily
+    interface TileSource {
+        /**
+         * @param index (int): index of a tile in row-major order
+         * @return (boolean): true if the source holds the tile, false if the tile is empty
+         */
+        boolean hasTile(int index);
+        /**
+         * Decode a tile
+         * Notice : may be called concurrently for distinct tiles
+         * @param index (int): index of a tile held by the source
+         * @return (BufferedImage): a new TILE_SIZE x TILE_SIZE ARGB tile
+         * @throws java.io.UncheckedIOException if the tile cannot be read
+         */
+        BufferedImage readTile(int index);
+    }
+
+    /// Size of the layer in pixel and in tiles
+    private final int width, height, tilesX, tilesY;
+    /// The tiles in row-major order (null for the empty tiles)
+    private final BufferedImage[] tiles;
+    /// Indicates which tiles are owned by this layer (i.e. not shared and can be written in place)
+    /// Notice : one flag per element so that distinct tiles can be written concurrently
+    private final boolean[] owned;
+    /// Kind of each row of the tiles (see SrcOver), computed when first needed and dropped when a tile is written
+    private final byte[][] rowKinds;
+    /// Number of changes of the layer, and its value at the last change of each tile
+    private final AtomicLong modCount;
+    private final long[] tileModCounts;
+    /// The source of the tiles not read yet (null if none), the tiles decoded from it (shared with the copies),
+    /// and which tiles still come from it (i.e. were never replaced nor written)
+    private final TileSource source;
+    private final AtomicReferenceArray<BufferedImage> decoded;
+    private final boolean[] inSource;
+
+    /**
+     * Create an empty layer
+     * @param width (int): width in pixel (width > 0)
+     * @param height (int): height in pixel (height > 0)
+     */
+    public TiledLayer(int width, int height) {
+        this(width, height, null);
+    }
+
+    /**
+     * Create a layer whose tiles are read from a source, each tile being decoded when first read
+     * @param width (int): width in pixel (width > 0)
+     * @param height (int): height in pixel (height > 0)
+     * @param source (TileSource): the source of the tiles (null for an empty layer)
+     */
+    TiledLayer(int width, int height, TileSource source) {
+
+        if (width < 1 || height < 1)
+            throw new IllegalArgumentException("layer dimension should be positive");
+
+        this.width = width;
+        this.height = height;
+        this.tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.tiles = new BufferedImage[tilesX * tilesY];
+        this.owned = new boolean[tiles.length];
+        this.rowKinds = new byte[tiles.length][];
+        this.modCount = new AtomicLong();
+        this.tileModCounts = new long[tiles.length];
+        this.source = source;
+        this.decoded = source == null ? null : new AtomicReferenceArray<>(tiles.length);
+        this.inSource = new boolean[tiles.length];
+        if (source != null) {
+            for (int i = 0; i < tiles.length; i++)
+                inSource[i] = source.hasTile(i);
+        }
+    }
+
+    /**
+     * Create a layer with the content of an image
+     * Notice : the fully transparent tiles of the image are not allocated
+     * Notice : a packed ARGB image, or a packed ABGR or BGR image (as decoded from a RGBA or RGB png, whose fully
+     * transparent pixels become 0), is copied straight from its raster into the tiles
+     * @param image (BufferedImage): the image to copy (not null)
+     */
+    public TiledLayer(BufferedImage image) {
+
+        this(image.getWidth(), image.getHeight());
+
+        // A packed ARGB, ABGR or BGR image is copied directly from its raster
+        int[] data = SrcOver.isPackedArgb(image) ? SrcOver.dataOf(image) : null;
+        int scan = data == null ? 0 : ((SinglePixelPackedSampleModel) image.getSampleModel()).getScanlineStride();
+        byte[] abgr = data == null && SrcOver.isPackedAbgr(image) ? ((DataBufferByte) image.getRaster().getDataBuffer()).getData() : null;
+        byte[] bgr = data == null && abgr == null && SrcOver.isPackedBgr(image) ? ((DataBufferByte) image.getRaster().getDataBuffer()).getData() : null;
+
+        int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+        for (int tileY = 0; tileY < tilesY; tileY++) {
+            for (int tileX = 0; tileX < tilesX; tileX++) {
+
+                int x = tileX * TILE_SIZE;
+                int y = tileY * TILE_SIZE;
+                int w = Math.min(TILE_SIZE, width - x);
+                int h = Math.min(TILE_SIZE, height - y);
+
+                Arrays.fill(pixels, 0);
+                if (data != null) {
+                    for (int row = 0; row < h; row++)
+                        System.arraycopy(data, (y + row) * scan + x, pixels, row * TILE_SIZE, w);
+                } else if (abgr != null) {
+                    for (int row = 0; row < h; row++) {
+                        int j = ((y + row) * width + x) * 4;
+                        for (int i = row * TILE_SIZE; i < row * TILE_SIZE + w; i++, j += 4) {
+                            int alpha = abgr[j] & 0xff;
+                            // Like a drawing, the fully transparent pixels lose their color
+                            if (alpha != 0)
+                                pixels[i] = alpha << 24 | (abgr[j + 3] & 0xff) << 16 | (abgr[j + 2] & 0xff) << 8 | (abgr[j + 1] & 0xff);
+                        }
+                    }
+                } else if (bgr != null) {
+                    for (int row = 0; row < h; row++) {
+                        int j = ((y + row) * width + x) * 3;
+                        for (int i = row * TILE_SIZE; i < row * TILE_SIZE + w; i++, j += 3)
+                            pixels[i] = 0xff000000 | (bgr[j + 2] & 0xff) << 16 | (bgr[j + 1] & 0xff) << 8 | (bgr[j] & 0xff);
+                    }
+                } else {
+                    image.getRGB(x, y, w, h, pixels, 0, TILE_SIZE);
+                }
+                if (isTransparent(pixels))
+                    continue;
+
+                BufferedImage tile = getWritableTile(tileY * tilesX + tileX);
+                System.arraycopy(pixels, 0, dataOf(tile), 0, pixels.length);
+            }
+        }
+    }
+
+    /**
+     * Copy constructor: the tiles are shared with the original layer
+     * @param layer (TiledLayer): the original layer (not null)
+     */
+    private TiledLayer(TiledLayer layer) {
+        this.width = layer.width;
+        this.height = layer.height;
+        this.tilesX = layer.tilesX;
+        this.tilesY = layer.tilesY;
+        this.tiles = layer.tiles.clone();
+        this.owned = new boolean[tiles.length];
+        this.rowKinds = layer.rowKinds.clone();
+        this.modCount = new AtomicLong(layer.modCount.get());
+        this.tileModCounts = layer.tileModCounts.clone();
+        this.source = layer.source;
+        this.decoded = layer.decoded;
+        this.inSource = layer.inSource.clone();
+    }
+
+    /**
+     * Copy this layer in constant time per tile: the tiles are shared by both layers until one writes them
+     * @return (TiledLayer): the copy
+     */
+    public TiledLayer copy() {
+        Arrays.fill(owned, false);
+        return new TiledLayer(this);
+    }
+
+    /// TiledLayer getters
+
+    /** @return (int): the number of allocated (i.e. not empty) tiles, decoded or not */
+    public int getAllocatedTileCount() {
+        int count = 0;
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] != null || inSource[i])
+                count++;
+        }
+        return count;
+    }
+
+    /** @return (int): the number of tiles still to decode from the source of this layer */
+    public int getUndecodedTileCount() {
+        int count = 0;
+        for (int i = 0; i < tiles.length; i++) {
+            if (inSource[i] && decoded.get(i) == null)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Getter for the modification count, which grows at each change of the layer
+     * Notice : a copy starts with the modification count of the original layer
+     * @return (long): the modification count
+     */
+    public long getModCount() {
+        return modCount.get();
+    }
+
+    /**
+     * @param since (long): a former modification count of this layer (or of the layer it is a copy of)
+     * @return (int): the number of tiles changed after this modification count
+     */
+    public int getChangedTileCount(long since) {
+        int count = 0;
+        for (long tileModCount : tileModCounts) {
+            if (tileModCount > since)
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * @param tileX (int): x-coordinate of the tile
+     * @param tileY (int): y-coordinate of the tile
+     * @return (boolean): true if the tile is empty (fully transparent and not allocated)
+     */
+    public boolean isEmptyTile(int tileX, int tileY) {
+        int index = tileY * tilesX + tileX;
+        return tiles[index] == null && !inSource[index];
+    }
+
+    /**
+     * Getter for a tile as an image
+     * Notice : the tile may be shared, it must not be modified
+     * @param tileX (int): x-coordinate of the tile
+     * @param tileY (int): y-coordinate of the tile
+     * @return (BufferedImage): the tile of TILE_SIZE x TILE_SIZE pixels, null if the tile is empty
+     */
+    public BufferedImage getTileImage(int tileX, int tileY) {
+        return tile(tileY * tilesX + tileX);
+    }
+
+    /**
+     * @param index (int): index of the tile in row-major order
+     * @return (BufferedImage): the tile, shared (null if the tile is empty)
+     */
+    BufferedImage tileAt(int index) {
+        return tile(index);
+    }
+
+    /**
+     * @param index (int): index of the tile in row-major order
+     * @return (TileSource): the source the tile still comes from, null if the tile was replaced or written
+     */
+    TileSource sourceOf(int index) {
+        return inSource[index] ? source : null;
+    }
+
+    /**
+     * Compare a tile of two layers without decoding it
+     * @param layer (TiledLayer): a layer of the same size (i.e. a copy of this layer)
+     * @param index (int): index of the tile in row-major order
+     * @return (boolean): true if both layers share the same tile
+     */
+    boolean isSameTile(TiledLayer layer, int index) {
+        if (inSource[index] && layer.inSource[index] && decoded == layer.decoded)
+            return true;
+        // An undecoded tile of a source is not known to be the same as any other tile
+        BufferedImage tile = loadedTile(index);
+        return tile == layer.loadedTile(index) && (tile != null || !inSource[index] && !layer.inSource[index]);
+    }
+
+    /**
+     * Replace a tile
+     * Notice : the tile is considered as shared, it is copied before the next write
+     * @param index (int): index of the tile in row-major order
+     * @param tile (BufferedImage): the new TILE_SIZE x TILE_SIZE ARGB tile (null for an empty tile)
+     */
+    void setTileAt(int index, BufferedImage tile) {
+        tiles[index] = tile;
+        owned[index] = false;
+        rowKinds[index] = null;
+        markChanged(index);
+    }
+
+    /**
+     * @param x (int): x-coordinate of the pixel
+     * @param y (int): y-coordinate of the pixel
+     * @return (int): the ARGB value of the pixel
+     */
+    public int getRGB(int x, int y) {
+        BufferedImage tile = tile((y / TILE_SIZE) * tilesX + x / TILE_SIZE);
+        return tile == null ? 0 : dataOf(tile)[(y % TILE_SIZE) * TILE_SIZE + x % TILE_SIZE];
+    }
+
+    /**
+     * Read a region of the layer as ARGB values, same contract as BufferedImage.getRGB
+     * @param x (int): x-coordinate of the region
+     * @param y (int): y-coordinate of the region
+     * @param w (int): width of the region
+     * @param h (int): height of the region
+     * @param rgbArray (Array of int): the destination (not null)
+     * @param offset (int): offset into the destination
+     * @param scansize (int): scanline stride of the destination
+     */
+    public void getRGB(int x, int y, int w, int h, int[] rgbArray, int offset, int scansize) {
+
+        for (int tileY = y / TILE_SIZE; tileY <= (y + h - 1) / TILE_SIZE; tileY++) {
+            int y0 = Math.max(y, tileY * TILE_SIZE);
+            int y1 = Math.min(y + h, (tileY + 1) * TILE_SIZE);
+
+            for (int tileX = x / TILE_SIZE; tileX <= (x + w - 1) / TILE_SIZE; tileX++) {
+                int x0 = Math.max(x, tileX * TILE_SIZE);
+                int x1 = Math.min(x + w, (tileX + 1) * TILE_SIZE);
+
+                BufferedImage tile = tile(tileY * tilesX + tileX);
+                for (int row = y0; row < y1; row++) {
+                    int dst = offset + (row - y) * scansize + (x0 - x);
+                    if (tile == null)
+                        Arrays.fill(rgbArray, dst, dst + x1 - x0, 0);
+                    else
+                        System.arraycopy(dataOf(tile), (row % TILE_SIZE) * TILE_SIZE + x0 % TILE_SIZE, rgbArray, dst, x1 - x0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Set the ARGB value of a pixel
+     * @param x (int): x-coordinate of the pixel
+     * @param y (int): y-coordinate of the pixel
+     * @param argb (int): the new ARGB value
+     */
+    public void setRGB(int x, int y, int argb) {
+        BufferedImage tile = getWritableTile((y / TILE_SIZE) * tilesX + x / TILE_SIZE);
+        dataOf(tile)[(y % TILE_SIZE) * TILE_SIZE + x % TILE_SIZE] = argb;
+    }
+
+    /**
+     * Draw (source over) a layer on this layer, the origin of the drawn layer being the given tile
+     * Notice : an empty tile, or a tile covered by an opaque tile of the drawn layer, shares it instead of copying it
+     * Notice : the other tiles are composited directly on their rasters, without any allocation once they are owned
+     * @param layer (TiledLayer): the layer to draw (not null)
+     * @param tileX (int): x-coordinate of the tile where to draw the top-left tile of the layer
+     * @param tileY (int): y-coordinate of the tile where to draw the top-left tile of the layer
+     */
+    public void drawLayer(TiledLayer layer, int tileX, int tileY) {
+
+        for (int ty = 0; ty < layer.tilesY; ty++) {
+            int dy = tileY + ty;
+            if (dy < 0 || dy >= tilesY)
+                continue;
+
+            for (int tx = 0; tx < layer.tilesX; tx++) {
+                int dx = tileX + tx;
+                if (dx < 0 || dx >= tilesX)
+                    continue;
+
+                int index = ty * layer.tilesX + tx;
+                BufferedImage src = layer.tile(index);
+                if (src == null)
+                    continue;
+                byte[] rows = layer.rowKindsOf(index);
+                byte kind = SrcOver.kindOf(rows);
+                if (kind == SrcOver.TRANSPARENT)
+                    continue;
+
+                int dst = dy * tilesX + dx;
+                if (tile(dst) == null || kind == SrcOver.OPAQUE) {
+                    // Source over an empty tile (or opaque source over anything) is the source itself
+                    layer.owned[index] = false;
+                    tiles[dst] = src;
+                    owned[dst] = false;
+                    rowKinds[dst] = rows;
+                    markChanged(dst);
+                } else {
+                    SrcOver.composite(dataOf(src), 0, TILE_SIZE, rows,
+                            dataOf(getWritableTile(dst)), 0, TILE_SIZE, TILE_SIZE, TILE_SIZE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fill (source over) the rows of tiles [fromTileY, toTileY[ with a layer repeated as a pattern
+     * - an empty tile, or any tile covered by a fully opaque pattern tile, shares the pattern tile
+     * - the other tiles are composited once per distinct (tile, pattern tile) pair, the result being shared
+     * Notice : distinct rows of tiles can be filled concurrently, as long as the pattern is not written meanwhile
+     * @param pattern (TiledLayer): the repeated layer (not null)
+     * @param originX (int): x-coordinate of a tile where the top-left tile of the pattern is drawn
+     * @param originY (int): y-coordinate of a tile where the top-left tile of the pattern is drawn
+     * @param fromTileY (int): first row of tiles to fill (included)
+     * @param toTileY (int): last row of tiles to fill (excluded)
+     */
+    public void fill(TiledLayer pattern, int originX, int originY, int fromTileY, int toTileY) {
+        fill(pattern, originX, originY, fromTileY, toTileY, null);
+    }
+
+    /**
+     * Fill (source over) the selected tiles of the rows [fromTileY, toTileY[ with a layer repeated as a pattern
+     * Notice : same as the unmasked fill, the mask being only read
+     * @param pattern (TiledLayer): the repeated layer (not null)
+     * @param originX (int): x-coordinate of a tile where the top-left tile of the pattern is drawn
+     * @param originY (int): y-coordinate of a tile where the top-left tile of the pattern is drawn
+     * @param fromTileY (int): first row of tiles to fill (included)
+     * @param toTileY (int): last row of tiles to fill (excluded)
+     * @param mask (BitSet): the tiles to fill, indexed in row-major order (null to fill all the tiles)
+     */
+    public void fill(TiledLayer pattern, int originX, int originY, int fromTileY, int toTileY, BitSet mask) {
+
+        int patternTiles = pattern.tiles.length;
+        byte[] kinds = new byte[patternTiles];
+        // The composites of each pattern tile, by destination tile
+        List<Map<BufferedImage, BufferedImage>> composites = new ArrayList<>(patternTiles);
+        for (int i = 0; i < patternTiles; i++) {
+            kinds[i] = pattern.tile(i) == null ? SrcOver.TRANSPARENT : SrcOver.kindOf(pattern.rowKindsOf(i));
+            composites.add(new IdentityHashMap<>());
+        }
+
+        for (int tileY = Math.max(0, fromTileY); tileY < Math.min(tilesY, toTileY); tileY++) {
+            int patternY = Math.floorMod(tileY - originY, pattern.tilesY);
+
+            for (int tileX = 0; tileX < tilesX; tileX++) {
+                if (mask != null && !mask.get(tileY * tilesX + tileX))
+                    continue;
+                int patternX = Math.floorMod(tileX - originX, pattern.tilesX);
+                int index = patternY * pattern.tilesX + patternX;
+                BufferedImage src = pattern.tile(index);
+                if (kinds[index] == SrcOver.TRANSPARENT)
+                    continue;
+
+                int dst = tileY * tilesX + tileX;
+                BufferedImage tile = tile(dst);
+                if (tile == null || kinds[index] == SrcOver.OPAQUE) {
+                    // Source over an empty tile (or opaque source over anything) is the source itself
+                    pattern.owned[index] = false;
+                    tiles[dst] = src;
+                    rowKinds[dst] = pattern.rowKinds[index];
+                } else {
+                    BufferedImage composite = composites.get(index).get(tile);
+                    if (composite == null) {
+                        composite = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+                        System.arraycopy(dataOf(tile), 0, dataOf(composite), 0, TILE_SIZE * TILE_SIZE);
+                        SrcOver.composite(dataOf(src), 0, TILE_SIZE, pattern.rowKinds[index],
+                                dataOf(composite), 0, TILE_SIZE, TILE_SIZE, TILE_SIZE);
+                        composites.get(index).put(tile, composite);
+                    }
+                    tiles[dst] = composite;
+                    rowKinds[dst] = null;
+                }
+                owned[dst] = false;
+                markChanged(dst);
+            }
+        }
+    }
+
+    /**
+     * Convert this layer into a single buffered image
+     * Notice : allocates the whole layer, only intended for small layers (i.e. brushes)
+     * @return (BufferedImage): a new ARGB image with the content of this layer
+     */
+    public BufferedImage toBufferedImage() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.drawRenderedImage(this, null);
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * Create a scaled down version of this layer without allocating the whole layer
+     * @param w (int): width of the thumbnail (w > 0)
+     * @param h (int): height of the thumbnail (h > 0)
+     * @return (BufferedImage): a new ARGB image of size w x h
+     */
+    public BufferedImage createThumbnail(int w, int h) {
+        BufferedImage thumbnail = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = thumbnail.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        for (int tileY = 0; tileY < tilesY; tileY++) {
+            int y0 = (int) ((long) tileY * TILE_SIZE * h / height);
+            int y1 = (int) ((long) (tileY + 1) * TILE_SIZE * h / height);
+            for (int tileX = 0; tileX < tilesX; tileX++) {
+                BufferedImage tile = tile(tileY * tilesX + tileX);
+                if (tile == null)
+                    continue;
+                int x0 = (int) ((long) tileX * TILE_SIZE * w / width);
+                int x1 = (int) ((long) (tileX + 1) * TILE_SIZE * w / width);
+                g.drawImage(tile, x0, y0, Math.max(x1, x0 + 1), Math.max(y1, y0 + 1), 0, 0, TILE_SIZE, TILE_SIZE, null);
+            }
+        }
+        g.dispose();
+        return thumbnail;
+    }
+
+    /**
+     * Getter for a tile which can be written in place: allocate it if empty, copy it if shared
+     * @param index (int): index of the tile
+     * @return (BufferedImage): the tile owned by this layer
+     */
+    private BufferedImage getWritableTile(int index) {
+
+        // The tile is about to be written (a decoded tile is shared, so it is copied)
+        BufferedImage tile = tile(index);
+        rowKinds[index] = null;
+        markChanged(index);
+
+        if (tile != null && owned[index])
+            return tile;
+
+        BufferedImage writable = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+        if (tile != null)
+            System.arraycopy(dataOf(tile), 0, dataOf(writable), 0, TILE_SIZE * TILE_SIZE);
+        tiles[index] = writable;
+        owned[index] = true;
+        return writable;
+    }
+
+    /**
+     * Getter for the kind of each row of a tile, computed if unknown
+     * Notice : may be called concurrently, the result being the same
+     * @param index (int): index of the tile
+     * @return (Array of byte): the kind of each row (see SrcOver), null if the tile is empty
+     */
+    private byte[] rowKindsOf(int index) {
+        BufferedImage tile = tile(index);
+        if (tile == null)
+            return null;
+        byte[] rows = rowKinds[index];
+        if (rows == null) {
+            rows = SrcOver.classifyRows(dataOf(tile), 0, TILE_SIZE, TILE_SIZE, TILE_SIZE);
+            rowKinds[index] = rows;
+        }
+        return rows;
+    }
+
+    /**
+     * Count a change of a tile
+     * Notice : distinct tiles may be changed concurrently (i.e. by a parallel fill)
+     * @param index (int): index of the tile
+     */
+    private void markChanged(int index) {
+        tileModCounts[index] = modCount.incrementAndGet();
+        inSource[index] = false;
+    }
+
+    /**
+     * @param index (int): index of the tile
+     * @return (BufferedImage): the tile if it is allocated or already decoded, null otherwise
+     */
+    private BufferedImage loadedTile(int index) {
+        return inSource[index] ? decoded.get(index) : tiles[index];
+    }
+
+    /**
+     * Getter for a tile, decoded from the source when first read
+     * Notice : may be called concurrently, a tile being decoded by the first thread which stores it
+     * @param index (int): index of the tile
+     * @return (BufferedImage): the tile (null if the tile is empty)
+     */
+    private BufferedImage tile(int index) {
+        BufferedImage tile = tiles[index];
+        if (tile != null || !inSource[index])
+            return tile;
+        tile = decoded.get(index);
+        if (tile == null) {
+            decoded.compareAndSet(index, null, source.readTile(index));
+            tile = decoded.get(index);
+        }
+        return tile;
+    }
+
+    private static int[] dataOf(BufferedImage tile) {
+        return ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+    }
+
+    private static boolean isTransparent(int[] pixels) {
+        for (int argb : pixels) {
+            if ((argb >>> 24) != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /// TiledLayer implements RenderedImage
+
+    @Override
+    public Vector<RenderedImage> getSources() {
+        return null;
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return Image.UndefinedProperty;
+    }
+
+    @Override
+    public String[] getPropertyNames() {
+        return null;
+    }
+
+    @Override
+    public ColorModel getColorModel() {
+        return COLOR_MODEL;
+    }
+
+    @Override
+    public SampleModel getSampleModel() {
+        return SAMPLE_MODEL;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getMinX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinY() {
+        return 0;
+    }
+
+    @Override
+    public int getNumXTiles() {
+        return tilesX;
+    }
+
+    @Override
+    public int getNumYTiles() {
+        return tilesY;
+    }
+
+    @Override
+    public int getMinTileX() {
+        return 0;
+    }
+
+    @Override
+    public int getMinTileY() {
+        return 0;
+    }
+
+    @Override
+    public int getTileWidth() {
+        return TILE_SIZE;
+    }
+
+    @Override
+    public int getTileHeight() {
+        return TILE_SIZE;
+    }
+
+    @Override
+    public int getTileGridXOffset() {
+        return 0;
+    }
+
+    @Override
+    public int getTileGridYOffset() {
+        return 0;
+    }
+
+    @Override
+    public Raster getTile(int tileX, int tileY) {
+        BufferedImage tile = tile(tileY * tilesX + tileX);
+        DataBuffer buffer = tile == null ? EMPTY : tile.getRaster().getDataBuffer();
+        return Raster.createRaster(SAMPLE_MODEL, buffer, new Point(tileX * TILE_SIZE, tileY * TILE_SIZE));
+    }
+
+    @Override
+    public Raster getData() {
+        return getData(new Rectangle(0, 0, width, height));
+    }
+
+    @Override
+    public Raster getData(Rectangle rect) {
+        WritableRaster raster = Raster.createPackedRaster(DataBuffer.TYPE_INT, rect.width, rect.height, MASKS, new Point(rect.x, rect.y));
+        return copyData(raster);
+    }
+
+    @Override
+    public WritableRaster copyData(WritableRaster raster) {
+
+        if (raster == null)
+            raster = Raster.createPackedRaster(DataBuffer.TYPE_INT, width, height, MASKS, null);
+
+        Rectangle bounds = raster.getBounds().intersection(new Rectangle(0, 0, width, height));
+        if (bounds.isEmpty())
+            return raster;
+
+        SampleModel sampleModel = raster.getSampleModel();
+        if (raster.getDataBuffer() instanceof DataBufferInt && sampleModel instanceof SinglePixelPackedSampleModel
+                && Arrays.equals(((SinglePixelPackedSampleModel) sampleModel).getBitMasks(), MASKS)) {
+            // Packed ARGB raster: the region is read straight into its data
+            int scan = ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride();
+            int offset = raster.getDataBuffer().getOffset() + (bounds.y - raster.getSampleModelTranslateY()) * scan
+                    + bounds.x - raster.getSampleModelTranslateX();
+            getRGB(bounds.x, bounds.y, bounds.width, bounds.height, ((DataBufferInt) raster.getDataBuffer()).getData(), offset, scan);
+            return raster;
+        }
+
+        int[] row = new int[bounds.width];
+        for (int y = bounds.y; y < bounds.y + bounds.height; y++) {
+            getRGB(bounds.x, y, bounds.width, 1, row, 0, bounds.width);
+            raster.setDataElements(bounds.x, y, bounds.width, 1, row);
+        }
+        return raster;
+    }
+}
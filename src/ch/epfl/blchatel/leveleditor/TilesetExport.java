@@ -0,0 +1,249 @@
+package ch.epfl.blchatel.leveleditor;
+
+import ch.epfl.blchatel.leveleditor.io.PngEncoder;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * The TilesetExport writes the background and foreground layers of a level as a tileset and a tilemap, next to the
+ * png files of a lve level (i.e. backgrounds/name.tileset.png and backgrounds/name.tilemap)
+ * - the tileset is a png atlas of the distinct tiles (one per cell), in rows of ceil(sqrt(count)) tiles, in the order
+ *   of their first cell
+ * - the tilemap holds the tile of each cell, as big-endian integers: its size in cells, the tile size in pixels, the
+ *   number of tiles, the number of columns of the atlas, then the tile index of each cell in row-major order from the
+ *   top (-1 for the fully transparent cells)
+ * - the cells are hashed in parallel over the rows of tiles, then the tiles are compared by hash, a tile shared by
+ *   several cells (copy on write, see TiledLayer) being compared once
+ * Notice : a layer without any tile has no atlas, only its tilemap is written
+ */
+public final class TilesetExport {
+
+    private TilesetExport() {}
+
+    /**
+     * The Tileset of a layer: its distinct tiles, and the tile of each cell
+     */
+    public static final class Tileset {
+
+        /// Size of the layer in cells
+        public final int cellsX, cellsY;
+        /// The tile index of each cell in row-major order (-1 if the cell is fully transparent)
+        private final int[] map;
+        /// The pixels of the distinct tiles, TILE_SIZE x TILE_SIZE ARGB each
+        private final List<int[]> tiles;
+
+        private Tileset(int cellsX, int cellsY, int[] map, List<int[]> tiles) {
+            this.cellsX = cellsX;
+            this.cellsY = cellsY;
+            this.map = map;
+            this.tiles = tiles;
+        }
+
+        /** @return (int): the number of distinct tiles */
+        public int getTileCount() {
+            return tiles.size();
+        }
+
+        /**
+         * @param cellX (int): x-coordinate of the cell
+         * @param cellY (int): y-coordinate of the cell (from the top)
+         * @return (int): the index of the tile of the cell, -1 if the cell is fully transparent
+         */
+        public int getTile(int cellX, int cellY) {
+            return map[cellY * cellsX + cellX];
+        }
+
+        /** @return (int): the number of tiles per row of the atlas */
+        public int getAtlasColumns() {
+            return Math.max(1, (int) Math.ceil(Math.sqrt(tiles.size())));
+        }
+
+        /** @return (BufferedImage): the atlas of the distinct tiles, null if there is no tile */
+        public BufferedImage createAtlas() {
+            if (tiles.isEmpty())
+                return null;
+            int size = TiledLayer.TILE_SIZE;
+            int columns = getAtlasColumns();
+            int rows = (tiles.size() + columns - 1) / columns;
+            BufferedImage atlas = new BufferedImage(columns * size, rows * size, BufferedImage.TYPE_INT_ARGB);
+            for (int i = 0; i < tiles.size(); i++)
+                atlas.setRGB((i % columns) * size, (i / columns) * size, size, size, tiles.get(i), 0, size);
+            return atlas;
+        }
+    }
+
+    /**
+     * Find the distinct tiles of a layer
+     * Notice : the layer must not be modified meanwhile, its tiles are read from the pool threads
+     * @param layer (TiledLayer): the layer (not null)
+     * @return (Tileset): the tileset of the layer
+     */
+    public static Tileset build(TiledLayer layer) {
+
+        int cellsX = layer.getNumXTiles();
+        int cellsY = layer.getNumYTiles();
+
+        // The rows of tiles are hashed in parallel (decoding the tiles of a lazily read layer too)
+        BufferedImage[] cells = new BufferedImage[cellsX * cellsY];
+        long[] hashes = new long[cells.length];
+        IntStream.range(0, cellsY).parallel().forEach(cellY -> {
+            for (int cellX = 0; cellX < cellsX; cellX++) {
+                int index = cellY * cellsX + cellX;
+                BufferedImage tile = layer.getTileImage(cellX, cellY);
+                if (tile != null && !isTransparent(SrcOver.dataOf(tile))) {
+                    cells[index] = tile;
+                    hashes[index] = hash(SrcOver.dataOf(tile));
+                }
+            }
+        });
+
+        // The tiles are numbered in the order of their first cell
+        int[] map = new int[cells.length];
+        List<int[]> tiles = new ArrayList<>();
+        Map<BufferedImage, Integer> byTile = new IdentityHashMap<>();
+        Map<Long, List<Integer>> byHash = new HashMap<>();
+        for (int index = 0; index < cells.length; index++) {
+            BufferedImage tile = cells[index];
+            if (tile == null) {
+                map[index] = -1;
+                continue;
+            }
+            Integer known = byTile.get(tile);
+            if (known == null) {
+                int[] pixels = SrcOver.dataOf(tile);
+                List<Integer> candidates = byHash.computeIfAbsent(hashes[index], hash -> new ArrayList<>(1));
+                for (int candidate : candidates) {
+                    if (Arrays.equals(tiles.get(candidate), pixels)) {
+                        known = candidate;
+                        break;
+                    }
+                }
+                if (known == null) {
+                    known = tiles.size();
+                    tiles.add(pixels.clone());
+                    candidates.add(known);
+                }
+                byTile.put(tile, known);
+            }
+            map[index] = known;
+        }
+        return new Tileset(cellsX, cellsY, map, tiles);
+    }
+
+    /**
+     * Export the background and foreground (if any) of a level next to its png files
+     * Notice : each file is written into a temporary file next to it, then renamed (see LayerImage.save)
+     * Notice : the written files are printed
+     * @param image (LayerImage): the level (not null)
+     * @param levelFile (File): the lve or lvb file of the level (not null)
+     * @param encoder (PngEncoder): the encoder of the atlases (not null)
+     * @throws IOException if a file cannot be written
+     */
+    public static void export(LayerImage image, File levelFile, PngEncoder encoder) throws IOException {
+        export(image, levelFile, encoder, true);
+    }
+
+    /**
+     * Export the background and foreground (if any) of a level next to its png files, see export
+     * @param image (LayerImage): the level (not null)
+     * @param levelFile (File): the lve or lvb file of the level (not null)
+     * @param encoder (PngEncoder): the encoder of the atlases (not null)
+     * @param verbose (boolean): true to print the written files, false to print nothing (i.e. in a batch)
+     * @throws IOException if a file cannot be written
+     */
+    public static void export(LayerImage image, File levelFile, PngEncoder encoder, boolean verbose) throws IOException {
+
+        List<String> lines = LayerImage.lveLines(levelFile);
+        Path levelPath = levelFile.getAbsoluteFile().toPath();
+        TiledLayer[] layers = {image.background, image.foreground};
+        for (int i = 0; i < layers.length; i++) {
+            if (layers[i] == null)
+                continue;
+            String png = lines.get(i + 1);
+            String stem = png.substring(0, png.length() - ".png".length());
+            Path atlasFile = levelPath.resolveSibling(stem + ".tileset.png");
+            Path mapFile = levelPath.resolveSibling(stem + ".tilemap");
+
+            Tileset tileset = build(layers[i]);
+            Files.createDirectories(mapFile.getParent());
+            BufferedImage atlas = tileset.createAtlas();
+            if (atlas != null) {
+                write(atlasFile, out -> encoder.write(atlas, out, null));
+            } else {
+                Files.deleteIfExists(atlasFile);
+            }
+            write(mapFile, out -> writeMap(tileset, out));
+            if (verbose)
+                System.out.println("Exported " + mapFile + " (" + tileset.getTileCount() + " tile(s) for "
+                        + tileset.cellsX * tileset.cellsY + " cell(s))");
+        }
+    }
+
+    /**
+     * Write a tilemap, see the layout above
+     * @param tileset (Tileset): the tileset (not null)
+     * @param out (OutputStream): the stream to write into, not closed (not null)
+     * @throws IOException if the stream fails
+     */
+    public static void writeMap(Tileset tileset, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(tileset.cellsX);
+        data.writeInt(tileset.cellsY);
+        data.writeInt(TiledLayer.TILE_SIZE);
+        data.writeInt(tileset.getTileCount());
+        data.writeInt(tileset.getAtlasColumns());
+        for (int tile : tileset.map)
+            data.writeInt(tile);
+        data.flush();
+    }
+
+    /// Writer of the content of a file
+    private interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private static void write(Path file, Content content) throws IOException {
+        Path temporaryFile = file.resolveSibling(file.getFileName() + ".saving");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temporaryFile))) {
+                content.writeTo(out);
+            }
+            LayerImage.moveAtomically(temporaryFile, file);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    /**
+     * @param pixels (Array of int): the ARGB pixels of a tile (not null)
+     * @return (long): a 64 bits hash of the pixels
+     */
+    private static long hash(int[] pixels) {
+        long hash = 0xcbf29ce484222325L;
+        for (int argb : pixels)
+            hash = (hash ^ argb) * 0x100000001b3L;
+        return hash ^ (hash >>> 32);
+    }
+
+    private static boolean isTransparent(int[] pixels) {
+        for (int argb : pixels) {
+            if ((argb >>> 24) != 0)
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,179 @@
+package ch.epfl.blchatel.leveleditor.io;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * File system decorator keeping the decoded images in memory.
+ * - the images are kept in least recently used order, within a capacity in bytes (of their decoded pixels)
+ * - the missing images are kept too (i.e. the brushes without foreground), as a few bytes each
+ * - the streams are not cached, a write drops the cached image of the same name
+ * - the hits and misses of the image reads are counted
+ * - the asynchronous reads are served from memory on hit, otherwise by the asynchronous reads of the cached file system
+ * Notice : the cached images are shared by all the readers, they must not be modified
+ * Notice : the methods may be called from any thread
+ */
+public final class CachingFileSystem implements FileSystem {
+
+    /// Default capacity in bytes, which holds all the bundled resources
+    public final static long DEFAULT_CAPACITY = 16L << 20;
+    /// The shared cache of the resources bundled with the binaries (brushes and icons), the missing ones being read
+    /// from the directory given by the "leveleditor.resources" system property if any
+    public final static CachingFileSystem RESOURCES = new CachingFileSystem(new ResourceFileSystem(resourcesFallback()), DEFAULT_CAPACITY);
+    /// Size given to a missing image in bytes
+    private final static long MISSING_SIZE = 64;
+
+    private final FileSystem fileSystem;
+    private final long capacity;
+    /// The cached images and their size in bytes, the least recently used first
+    private final LinkedHashMap<String, Entry> images;
+    private long size;
+    private long hits, misses;
+
+    /// A cached image (null if missing)
+    private static final class Entry {
+        private final Image image;
+        private final long size;
+
+        private Entry(Image image, long size) {
+            this.image = image;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Creates a new caching file system.
+     * @param fileSystem (FileSystem): the cached file system, not null
+     * @param capacity (long): maximal size of the cached images in bytes (capacity >= 0)
+     */
+    public CachingFileSystem(FileSystem fileSystem, long capacity) {
+        if (fileSystem == null)
+            throw new NullPointerException();
+        if (capacity < 0)
+            throw new IllegalArgumentException("the capacity should be positive");
+        this.fileSystem = fileSystem;
+        this.capacity = capacity;
+        this.images = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /** @return (long): number of image reads served from memory */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /** @return (long): number of image reads decoded by the cached file system */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /** @return (long): size of the cached images in bytes */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /** Drop all the cached images (the counters are kept) */
+    public synchronized void clear() {
+        images.clear();
+        size = 0;
+    }
+
+    @Override
+    public InputStream read(String name) throws IOException {
+        return fileSystem.read(name);
+    }
+
+    @Override
+    public Image readImage(String name) {
+        Entry entry = lookup(name);
+        if (entry != null)
+            return entry.image;
+        return store(name, fileSystem.readImage(name));
+    }
+
+    @Override
+    public CompletableFuture<Image> readImageAsync(String name) {
+        Entry entry = lookup(name);
+        if (entry != null)
+            return CompletableFuture.completedFuture(entry.image);
+        return fileSystem.readImageAsync(name).thenApply(image -> store(name, image));
+    }
+
+    /**
+     * Look for a cached image, and count the hit or the miss
+     * @param name (String): the image name, not null
+     * @return (Entry): the cached entry, null if the image is not cached
+     */
+    private synchronized Entry lookup(String name) {
+        Entry entry = images.get(name);
+        if (entry != null)
+            hits++;
+        else
+            misses++;
+        return entry;
+    }
+
+    /**
+     * Cache a decoded image, evicting the least recently used ones beyond the capacity
+     * Notice : the images are decoded out of the lock, concurrent misses of the same name decode it twice, the last one
+     * being kept
+     * @param name (String): the image name, not null
+     * @param image (Image): the decoded image, null if missing
+     * @return (Image): the given image
+     */
+    private Image store(String name, Image image) {
+        long imageSize = image == null ? MISSING_SIZE : sizeOf(image);
+        if (imageSize > capacity)
+            return image;
+
+        synchronized (this) {
+            Entry previous = images.put(name, new Entry(image, imageSize));
+            if (previous != null)
+                size -= previous.size;
+            size += imageSize;
+            Iterator<Entry> leastRecentlyUsed = images.values().iterator();
+            while (size > capacity) {
+                size -= leastRecentlyUsed.next().size;
+                leastRecentlyUsed.remove();
+            }
+        }
+        return image;
+    }
+
+    @Override
+    public OutputStream write(String name) throws IOException {
+        synchronized (this) {
+            Entry entry = images.remove(name);
+            if (entry != null)
+                size -= entry.size;
+        }
+        return fileSystem.write(name);
+    }
+
+    /** @return (FileSystem): the directory of the "leveleditor.resources" system property, an empty one if not set */
+    private static FileSystem resourcesFallback() {
+        String directory = System.getProperty("leveleditor.resources");
+        if (directory == null)
+            return DefaultFileSystem.INSTANCE;
+        return new DirectoryFileSystem(Paths.get(directory));
+    }
+
+    /**
+     * @param image (Image): an image, not null
+     * @return (long): the size of its pixels in bytes (estimated as ARGB if it is not a BufferedImage)
+     */
+    private static long sizeOf(Image image) {
+        if (image instanceof BufferedImage) {
+            DataBuffer buffer = ((BufferedImage) image).getRaster().getDataBuffer();
+            return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+        }
+        return 4L * Math.max(1, image.getWidth(null)) * Math.max(1, image.getHeight(null));
+    }
+}
@@ -0,0 +1,186 @@
+package ch.epfl.blchatel.leveleditor.io;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Implementation of file system over a directory of the disk, where the names are paths relative to the directory.
+ * - the asynchronous image reads load the file with an AsynchronousFileChannel, then decode it in a bounded pool
+ * - the names leading out of the directory (i.e. "../a.png") are refused
+ * - the missing parent directories are created by the writes
+ * Notice : the methods may be called from any thread
+ */
+public final class DirectoryFileSystem implements FileSystem {
+
+    /// The threads decoding the images read asynchronously, shared by the file systems (daemon threads, created on demand)
+    private final static ExecutorService DECODE_POOL = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())), r -> {
+                Thread thread = new Thread(r, "DirectoryFileSystem decode");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /// The directory, absolute and normalized
+    private final Path root;
+    /// The executor of the decodes
+    private final Executor decoder;
+
+    /**
+     * Creates a new directory file system.
+     * @param root (Path): the directory of the files, not null
+     * @param decoder (Executor): the executor of the asynchronous decodes, not null
+     */
+    public DirectoryFileSystem(Path root, Executor decoder) {
+        if (root == null || decoder == null)
+            throw new NullPointerException();
+        this.root = root.toAbsolutePath().normalize();
+        this.decoder = decoder;
+    }
+
+    /**
+     * Creates a new directory file system, decoding in the shared pool.
+     * @param root (Path): the directory of the files, not null
+     */
+    public DirectoryFileSystem(Path root) {
+        this(root, DECODE_POOL);
+    }
+
+    /** @return (Path): the absolute directory of the files */
+    public Path getRoot() {
+        return root;
+    }
+
+    /**
+     * @param name (String): a file name, not null
+     * @return (Path): the file path in the directory
+     * @throws IOException if the name leads out of the directory
+     */
+    private Path resolve(String name) throws IOException {
+        Path path = root.resolve(name).normalize();
+        if (!path.startsWith(root))
+            throw new AccessDeniedException(name, null, "outside of " + root);
+        return path;
+    }
+
+    @Override
+    public InputStream read(String name) throws IOException {
+        return Files.newInputStream(resolve(name));
+    }
+
+    @Override
+    public Image readImage(String name) {
+        try {
+            return ImageIO.read(resolve(name).toFile());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Image> readImageAsync(String name) {
+        return readBufferedImageAsync(name).<Image>thenApply(image -> image).exceptionally(e -> null);
+    }
+
+    /**
+     * Open an existing Image file for read, without blocking the caller, see readImageAsync
+     * @param name (String): the file name, not null
+     * @return (CompletableFuture of BufferedImage): completed with the content image, or exceptionally with the
+     * IOException telling why the file cannot be read (i.e. NoSuchFileException) or decoded
+     */
+    public CompletableFuture<BufferedImage> readBufferedImageAsync(String name) {
+        return readBytes(name).thenApplyAsync(buffer -> {
+            try {
+                return decode(buffer);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, decoder);
+    }
+
+    @Override
+    public OutputStream write(String name) throws IOException {
+        Path path = resolve(name);
+        Path parent = path.getParent();
+        if (parent != null)
+            Files.createDirectories(parent);
+        return Files.newOutputStream(path);
+    }
+
+    /**
+     * Read a whole file without blocking the caller
+     * @param name (String): the file name, not null
+     * @return (CompletableFuture of ByteBuffer): completed with the file content (from 0 to the buffer position), or
+     * exceptionally if the file cannot be read
+     */
+    private CompletableFuture<ByteBuffer> readBytes(String name) {
+        CompletableFuture<ByteBuffer> bytes = new CompletableFuture<>();
+        try {
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(resolve(name), StandardOpenOption.READ);
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                channel.close();
+                throw new IOException(name + " is too large");
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            channel.read(buffer, 0, buffer, new CompletionHandler<Integer, ByteBuffer>() {
+                @Override
+                public void completed(Integer count, ByteBuffer buffer) {
+                    // Read again until the buffer is full, or the end of file (if the file shrank)
+                    if (count >= 0 && buffer.hasRemaining()) {
+                        channel.read(buffer, buffer.position(), buffer, this);
+                        return;
+                    }
+                    close(channel);
+                    bytes.complete(buffer);
+                }
+
+                @Override
+                public void failed(Throwable e, ByteBuffer buffer) {
+                    close(channel);
+                    bytes.completeExceptionally(e);
+                }
+            });
+        } catch (IOException e) {
+            bytes.completeExceptionally(e);
+        }
+        return bytes;
+    }
+
+    /**
+     * @param buffer (ByteBuffer): the content of an image file, from 0 to its position, not null
+     * @return (BufferedImage): the decoded image, not null
+     * @throws IOException if the content is not an image
+     */
+    private static BufferedImage decode(ByteBuffer buffer) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(buffer.array(), 0, buffer.position()));
+        if (image == null)
+            throw new IOException("no decoder for this file");
+        return image;
+    }
+
+    /** @param channel (AsynchronousFileChannel): a channel to close, the error being only printed (nothing was written) */
+    private static void close(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
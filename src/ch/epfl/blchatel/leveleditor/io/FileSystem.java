@@ -4,6 +4,7 @@ import java.awt.*;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Represents a simple file system, where each file is associated to a unique name.
@@ -25,6 +26,16 @@ public interface FileSystem {
      */
     Image readImage(String name);
 
+    /**
+     * Open an existing Image file for read, without blocking the caller.
+     * Notice : by default, readImage is called in the common pool
+     * @param name (String): unique identifier, not null
+     * @return (CompletableFuture of Image): completed with the content image, null if no image found
+     */
+    default CompletableFuture<Image> readImageAsync(String name) {
+        return CompletableFuture.supplyAsync(() -> readImage(name));
+    }
+
     /**
      * Open file for write, previous content overwritten if any.
      * @param name (String): unique identifier, not null
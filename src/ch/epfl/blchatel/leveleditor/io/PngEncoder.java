@@ -0,0 +1,398 @@
+package ch.epfl.blchatel.leveleditor.io;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * The PngEncoder writes images as 8 bits per channel png files, with a chosen deflate level and row filter
+ * - the rows are encoded by bands, filtered and deflated in parallel (on the common pool), the bands being written
+ *   in order as they are done
+ * - each band is deflated with the end of the previous one as preset dictionary and ends with a sync flush, so the
+ *   bands form a single zlib stream almost as small as a sequential one
+ * - an image whose pixels are all opaque is written without its alpha channel, ImageIO decoding it as a 3-byte BGR
+ *   image which the loading repacks straight into ARGB tiles like the RGBA ones (see TiledLayer)
+ */
+public final class PngEncoder {
+
+    /// Row filters, ADAPTIVE choosing for each row the filter of minimal sum of absolute differences
+    public enum Filter { NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE }
+
+    /// Listener interface to follow an encoding
+    public interface Listener {
+        /**
+         * React to the progress of the encoding, called from the encoding thread
+         * @param progress (double): the fraction of the rows written, from 0 to 1
+         */
+        void onProgress(double progress);
+    }
+
+    /// Quick encoding, i.e. for autosave
+    public final static PngEncoder FAST = new PngEncoder(1, Deflater.DEFAULT_STRATEGY, Filter.SUB);
+    /// Default encoding, close to the smallest files in a fraction of the time
+    public final static PngEncoder DEFAULT = new PngEncoder(6, Deflater.DEFAULT_STRATEGY, Filter.ADAPTIVE);
+    /// Smallest files, i.e. for release
+    public final static PngEncoder MAX_COMPRESSION = new PngEncoder(9, Deflater.FILTERED, Filter.ADAPTIVE);
+
+    private final static byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private final static int[] ARGB_MASKS = {0x00ff0000, 0x0000ff00, 0x000000ff, 0xff000000};
+    /// Size of the raw data of a band and of the preset dictionary in bytes
+    private final static int BAND_BYTES = 1 << 20;
+    private final static int DICTIONARY_BYTES = 1 << 15;
+
+    /// The deflate level (0 to 9) and strategy, and the row filter
+    private final int level, strategy;
+    private final Filter filter;
+
+    /**
+     * Default PngEncoder Constructor
+     * @param level (int): the deflate level, from 0 (no compression) to 9 (best compression)
+     * @param strategy (int): the deflate strategy (Deflater.DEFAULT_STRATEGY, FILTERED or HUFFMAN_ONLY)
+     * @param filter (Filter): the row filter (not null)
+     */
+    public PngEncoder(int level, int strategy, Filter filter) {
+
+        if (level < 0 || level > 9)
+            throw new IllegalArgumentException("the deflate level should be between 0 and 9");
+        if (strategy != Deflater.DEFAULT_STRATEGY && strategy != Deflater.FILTERED && strategy != Deflater.HUFFMAN_ONLY)
+            throw new IllegalArgumentException("unknown deflate strategy");
+        if (filter == null)
+            throw new IllegalArgumentException("filter should not be null");
+
+        this.level = level;
+        this.strategy = strategy;
+        this.filter = filter;
+    }
+
+    /**
+     * Write an image as a png file
+     * Notice : the image is read from the pool threads, it must not be modified meanwhile
+     * @param image (RenderedImage): the image to write (not null)
+     * @param out (OutputStream): the stream to write into, not closed (not null)
+     * @param listener (Listener): the listener following the encoding (may be null)
+     * @throws IOException if the stream cannot be written
+     */
+    public void write(RenderedImage image, OutputStream out, Listener listener) throws IOException {
+
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int rowsPerBand = Math.max(1, Math.min(height, BAND_BYTES / (4 * width)));
+        int bands = (height + rowsPerBand - 1) / rowsPerBand;
+
+        // First pass: is there any pixel which is not opaque?
+        ForkJoinTask<?>[] alphaTasks = new ForkJoinTask<?>[bands];
+        for (int i = 0; i < bands; i++) {
+            final int y0 = i * rowsPerBand;
+            alphaTasks[i] = ForkJoinPool.commonPool().submit(
+                    () -> isOpaque(readRows(image, y0, Math.min(rowsPerBand, height - y0))));
+        }
+        boolean alpha = false;
+        for (ForkJoinTask<?> task : alphaTasks)
+            alpha |= !(Boolean) task.join();
+        int channels = alpha ? 4 : 3;
+
+        // Second pass: the bands are encoded in parallel and written in order
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[bands];
+        for (int i = 0; i < bands; i++) {
+            final int y0 = i * rowsPerBand;
+            final boolean last = i == bands - 1;
+            tasks[i] = ForkJoinPool.commonPool().submit(
+                    () -> encodeBand(image, y0, Math.min(rowsPerBand, height - y0), channels, last));
+        }
+
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            data.write(SIGNATURE);
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+            DataOutputStream headerData = new DataOutputStream(header);
+            headerData.writeInt(width);
+            headerData.writeInt(height);
+            headerData.writeByte(8);
+            // Color type: 6 for RGBA, 2 for RGB (decoded as TYPE_3BYTE_BGR, see SrcOver.isPackedBgr)
+            headerData.writeByte(alpha ? 6 : 2);
+            headerData.writeByte(0);
+            headerData.writeByte(0);
+            headerData.writeByte(0);
+            writeChunk(data, "IHDR", header.toByteArray(), header.size());
+
+            long adler = 1;
+            for (int i = 0; i < bands; i++) {
+                Band band = (Band) tasks[i].join();
+                tasks[i] = null;
+                adler = combineAdler32(adler, band.adler, band.rawLength);
+
+                ByteArrayOutputStream idat = band.deflated;
+                if (i == 0) {
+                    // The zlib header, before the first band
+                    ByteArrayOutputStream first = new ByteArrayOutputStream(idat.size() + 2);
+                    first.write(0x78);
+                    first.write(zlibFlags());
+                    idat.writeTo(first);
+                    idat = first;
+                }
+                if (i == bands - 1) {
+                    // The zlib checksum, after the last band
+                    new DataOutputStream(idat).writeInt((int) adler);
+                }
+                writeChunk(data, "IDAT", idat.toByteArray(), idat.size());
+
+                if (listener != null)
+                    listener.onProgress((double) (i + 1) / bands);
+            }
+
+            writeChunk(data, "IEND", new byte[0], 0);
+            data.flush();
+        } finally {
+            for (ForkJoinTask<?> task : tasks) {
+                if (task != null)
+                    task.cancel(false);
+            }
+        }
+    }
+
+    /// A band encoded: its deflated data, and the length and checksum of its filtered data
+    private static final class Band {
+        private final ByteArrayOutputStream deflated;
+        private final int rawLength;
+        private final long adler;
+
+        private Band(ByteArrayOutputStream deflated, int rawLength, long adler) {
+            this.deflated = deflated;
+            this.rawLength = rawLength;
+            this.adler = adler;
+        }
+    }
+
+    /**
+     * Filter and deflate the rows [y0, y0 + rows[
+     * @param image (RenderedImage): the image (not null)
+     * @param y0 (int): the first row of the band
+     * @param rows (int): the number of rows of the band
+     * @param channels (int): 4 for RGBA, 3 for RGB
+     * @param last (boolean): true if this is the last band, which ends the deflate stream
+     * @return (Band): the encoded band
+     */
+    private Band encodeBand(RenderedImage image, int y0, int rows, int channels, boolean last) {
+
+        int width = image.getWidth();
+        int rowLength = 1 + width * channels;
+
+        // The rows before the band are filtered again for the dictionary (the filters read the row above)
+        int dictionaryRows = y0 == 0 ? 0 : Math.min(y0, (DICTIONARY_BYTES + rowLength - 1) / rowLength);
+        int firstRow = y0 - dictionaryRows;
+        int aboveRow = firstRow == 0 ? 0 : 1;
+        int[] argb = readRows(image, firstRow - aboveRow, aboveRow + dictionaryRows + rows);
+
+        byte[] filtered = new byte[(dictionaryRows + rows) * rowLength];
+        byte[] previous = new byte[width * channels];
+        byte[] current = new byte[width * channels];
+        if (aboveRow == 1)
+            toBytes(argb, 0, width, channels, previous);
+        byte[][] candidates = new byte[Filter.values().length][width * channels];
+        for (int row = 0; row < dictionaryRows + rows; row++) {
+            toBytes(argb, (aboveRow + row) * width, width, channels, current);
+            filterRow(previous, current, channels, candidates, filtered, row * rowLength);
+            byte[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+
+        int offset = dictionaryRows * rowLength;
+        int length = rows * rowLength;
+        Adler32 adler = new Adler32();
+        adler.update(filtered, offset, length);
+
+        Deflater deflater = new Deflater(level, true);
+        byte[] buffer = new byte[1 << 16];
+        try {
+            deflater.setStrategy(strategy);
+            // The strategy is only applied by the next deflate call, which must happen before the dictionary is set
+            deflater.deflate(buffer, 0, buffer.length, Deflater.NO_FLUSH);
+            if (dictionaryRows > 0) {
+                int dictionaryLength = Math.min(DICTIONARY_BYTES, offset);
+                deflater.setDictionary(filtered, offset - dictionaryLength, dictionaryLength);
+            }
+            deflater.setInput(filtered, offset, length);
+            if (last)
+                deflater.finish();
+
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream(length / 4 + 64);
+            while (true) {
+                int n = deflater.deflate(buffer, 0, buffer.length, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                deflated.write(buffer, 0, n);
+                // A sync flush is complete when the buffer is not filled, the last band when the stream is finished
+                if (last ? deflater.finished() : n < buffer.length)
+                    break;
+            }
+            return new Band(deflated, length, adler.getValue());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Filter a row
+     * @param previous (Array of byte): the unfiltered row above (zeros for the first row)
+     * @param current (Array of byte): the unfiltered row
+     * @param channels (int): the number of bytes per pixel
+     * @param candidates (Array of Array of byte): buffers of the filtered row, one per filter
+     * @param out (Array of byte): the filtered data, receiving the filter type and the filtered row
+     * @param offset (int): index of the filtered row into the filtered data
+     */
+    private void filterRow(byte[] previous, byte[] current, int channels, byte[][] candidates, byte[] out, int offset) {
+
+        int type;
+        if (filter == Filter.ADAPTIVE) {
+            type = 0;
+            long best = Long.MAX_VALUE;
+            for (int t = 0; t < Filter.ADAPTIVE.ordinal(); t++) {
+                long sum = applyFilter(t, previous, current, channels, candidates[t]);
+                if (sum < best) {
+                    best = sum;
+                    type = t;
+                }
+            }
+        } else {
+            type = filter.ordinal();
+            applyFilter(type, previous, current, channels, candidates[type]);
+        }
+        out[offset] = (byte) type;
+        System.arraycopy(candidates[type], 0, out, offset + 1, current.length);
+    }
+
+    /**
+     * Apply a filter to a row
+     * @return (long): the sum of the absolute values (as signed bytes) of the filtered row
+     */
+    private static long applyFilter(int type, byte[] previous, byte[] current, int channels, byte[] out) {
+
+        long sum = 0;
+        for (int i = 0; i < current.length; i++) {
+            int x = current[i] & 0xff;
+            int a = i < channels ? 0 : current[i - channels] & 0xff;
+            int b = previous[i] & 0xff;
+            int predictor;
+            switch (type) {
+                case 0: predictor = 0; break;
+                case 1: predictor = a; break;
+                case 2: predictor = b; break;
+                case 3: predictor = (a + b) >>> 1; break;
+                default: {
+                    int c = i < channels ? 0 : previous[i - channels] & 0xff;
+                    int p = a + b - c;
+                    int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+                    predictor = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+                }
+            }
+            byte value = (byte) (x - predictor);
+            out[i] = value;
+            sum += Math.abs(value);
+        }
+        return sum;
+    }
+
+    /**
+     * Read rows of an image as non premultiplied ARGB values
+     * @param image (RenderedImage): the image (not null)
+     * @param y0 (int): the first row
+     * @param rows (int): the number of rows
+     * @return (Array of int): the ARGB values of the rows, in row-major order
+     */
+    private static int[] readRows(RenderedImage image, int y0, int rows) {
+
+        int width = image.getWidth();
+        int minX = image.getMinX(), minY = image.getMinY();
+        DataBufferInt buffer = new DataBufferInt(width * rows);
+        WritableRaster raster = Raster.createPackedRaster(buffer, width, rows, width, ARGB_MASKS, new Point(minX, minY + y0));
+
+        ColorModel colorModel = image.getColorModel();
+        SampleModel sampleModel = image.getSampleModel();
+        if (sampleModel instanceof SinglePixelPackedSampleModel && sampleModel.getDataType() == DataBuffer.TYPE_INT
+                && Arrays.equals(((SinglePixelPackedSampleModel) sampleModel).getBitMasks(), ARGB_MASKS)
+                && colorModel.hasAlpha() && !colorModel.isAlphaPremultiplied()) {
+            // Packed ARGB image (i.e. TiledLayer or TYPE_INT_ARGB image): the elements are the ARGB values
+            image.copyData(raster);
+            return buffer.getData();
+        }
+
+        // Other formats, through the color model
+        Raster source = image.getData(raster.getBounds());
+        int[] argb = buffer.getData();
+        Object pixel = null;
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < width; x++) {
+                pixel = source.getDataElements(minX + x, minY + y0 + y, pixel);
+                argb[y * width + x] = colorModel.getRGB(pixel);
+            }
+        }
+        return argb;
+    }
+
+    private static boolean isOpaque(int[] argb) {
+        for (int value : argb) {
+            if ((value >>> 24) != 0xff)
+                return false;
+        }
+        return true;
+    }
+
+    /** Convert a row of ARGB values into RGBA (or RGB) bytes */
+    private static void toBytes(int[] argb, int offset, int width, int channels, byte[] out) {
+        for (int x = 0, i = 0; x < width; x++) {
+            int value = argb[offset + x];
+            out[i++] = (byte) (value >> 16);
+            out[i++] = (byte) (value >> 8);
+            out[i++] = (byte) value;
+            if (channels == 4)
+                out[i++] = (byte) (value >>> 24);
+        }
+    }
+
+    /** @return (int): the second byte of the zlib header, telling the deflate level */
+    private int zlibFlags() {
+        int flags = (level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3) << 6;
+        return flags + 31 - ((0x78 << 8 | flags) % 31);
+    }
+
+    /**
+     * Combine the Adler-32 checksums of two consecutive data
+     * @param adler1 (long): the checksum of the first data
+     * @param adler2 (long): the checksum of the second data
+     * @param length2 (long): the length of the second data
+     * @return (long): the checksum of the concatenated data
+     */
+    private static long combineAdler32(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long remainder = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (remainder * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + base - remainder;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= base << 1) sum2 -= base << 1;
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | sum2 << 16;
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+}
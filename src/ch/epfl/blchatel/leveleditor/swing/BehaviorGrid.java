@@ -0,0 +1,86 @@
+package ch.epfl.blchatel.leveleditor.swing;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * The BehaviorGrid is a compact copy of a behavior layer: one byte per cell holding a ColorMap ordinal
+ * - it is built with one read of the behavior raster, each color being looked up in the ColorMap by hash
+ * - the empty (fully transparent) cells and the cells of unknown color have their own codes, the latter being counted
+ * - the rows are stored from top to bottom, like the behavior image
+ */
+public final class BehaviorGrid {
+
+    /// Codes of the cells which are not a ColorMap ordinal
+    public final static byte EMPTY = -1, UNKNOWN = -2;
+
+    public final int width, height;
+    /// The cells in row-major order
+    private final byte[] cells;
+    /// Number of cells for each ColorMap ordinal
+    private final int[] counts;
+    private final int unknownCount;
+
+    /**
+     * Build the grid of a behavior layer
+     * @param behavior (BufferedImage): the behavior layer, one pixel per cell (not null)
+     */
+    public BehaviorGrid(BufferedImage behavior) {
+
+        this.width = behavior.getWidth();
+        this.height = behavior.getHeight();
+        this.cells = new byte[width * height];
+        this.counts = new int[ColorMap.values().length];
+
+        int[] colors = behavior.getRGB(0, 0, width, height, null, 0, width);
+        int unknown = 0;
+        // Consecutive cells often share their color: the last lookup is kept
+        int lastColor = 0;
+        byte lastCode = codeOf(lastColor);
+        for (int i = 0; i < colors.length; i++) {
+            int color = colors[i];
+            if (color != lastColor) {
+                lastCode = codeOf(color);
+                lastColor = color;
+            }
+            cells[i] = lastCode;
+            if (lastCode == UNKNOWN)
+                unknown++;
+            else if (lastCode != EMPTY)
+                counts[lastCode]++;
+        }
+        this.unknownCount = unknown;
+    }
+
+    /**
+     * @param color (int): an ARGB color
+     * @return (byte): the ColorMap ordinal of the color, EMPTY if it is fully transparent, UNKNOWN otherwise
+     */
+    public static byte codeOf(int color) {
+        ColorMap entry = ColorMap.fromInt(color);
+        if (entry != null)
+            return (byte) entry.ordinal();
+        return (color >>> 24) == 0 ? EMPTY : UNKNOWN;
+    }
+
+    /**
+     * @param x (int): x-coordinate of the cell
+     * @param y (int): y-coordinate of the cell (from the top)
+     * @return (byte): the ColorMap ordinal of the cell, EMPTY or UNKNOWN
+     */
+    public byte getCode(int x, int y) {
+        return cells[y * width + x];
+    }
+
+    /**
+     * @param behavior (ColorMap): a behavior (not null)
+     * @return (int): the number of cells with this behavior
+     */
+    public int count(ColorMap behavior) {
+        return counts[behavior.ordinal()];
+    }
+
+    /** @return (int): the number of cells whose color is not in the ColorMap */
+    public int getUnknownCount() {
+        return unknownCount;
+    }
+}
@@ -10,6 +10,7 @@ import javax.swing.tree.DefaultMutableTreeNode;
 import javax.swing.tree.DefaultTreeCellRenderer;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * The BrushDropList represents a scroll panel with a list of all available brushes
@@ -79,12 +80,21 @@ public class BrushDropList extends JPanel {
         Comparator<BrushesRes> fileComparator = Comparator.comparing(o -> o.name);
         Arrays.sort(resources, fileComparator);
 
-        FileSystem fileSystem = new ResourceFileSystem(DefaultFileSystem.INSTANCE);
+        FileSystem fileSystem = CachingFileSystem.RESOURCES;
 
+        // All the images are requested before waiting for the first one, to be read and decoded concurrently
+        List<CompletableFuture<Image>> images = new ArrayList<>(3 * resources.length);
         for (BrushesRes br : resources) {
-            Image backgroundImage = fileSystem.readImage(br.background);
-            Image behaviorImage = fileSystem.readImage(br.behavior);
-            Image foregroundImage = fileSystem.readImage(br.foreground);
+            images.add(fileSystem.readImageAsync(br.background));
+            images.add(fileSystem.readImageAsync(br.behavior));
+            images.add(fileSystem.readImageAsync(br.foreground));
+        }
+
+        Iterator<CompletableFuture<Image>> image = images.iterator();
+        for (BrushesRes br : resources) {
+            Image backgroundImage = image.next().join();
+            Image behaviorImage = image.next().join();
+            Image foregroundImage = image.next().join();
 
             String name = br.name.toLowerCase();
             brushesMap.put(name, new LayerImage(backgroundImage, foregroundImage, behaviorImage));
@@ -181,7 +191,7 @@ public class BrushDropList extends JPanel {
             label.setForeground(Color.GRAY);
             if(leaf){
                 LayerImage image = brushesMap.get(t.path);
-                label.setIcon(image.vsIcon);
+                label.setIcon(image.getVsIcon());
                 label.setText(label.getText() + " ("+image.cellWidth+"x"+image.cellHeight+")");
                 label.setText(label.getText());
             }
@@ -3,7 +3,10 @@ package ch.epfl.blchatel.leveleditor.swing;
 import ch.epfl.blchatel.leveleditor.LayerImage;
 
 import javax.swing.*;
-
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 
 public enum ColorMap {
@@ -25,6 +28,22 @@ public enum ColorMap {
         this.intValue = intValue;
     }
 
+    /// The entries by int value
+    private static final Map<Integer, ColorMap> BY_INT_VALUE = new HashMap<>();
+    static {
+        for(ColorMap cMap : ColorMap.values())
+            BY_INT_VALUE.put(cMap.intValue, cMap);
+    }
+
+    /**
+     * Look up the entry of a color
+     * @param intValue (int): the ARGB color
+     * @return (ColorMap): the entry with this color, null if there is none
+     */
+    public static ColorMap fromInt(int intValue){
+        return BY_INT_VALUE.get(intValue);
+    }
+
     public static void showMap(){
 
         StringBuilder colorMap = new StringBuilder("Color Map : \n" +
@@ -40,25 +59,83 @@ public enum ColorMap {
         JOptionPane.showMessageDialog(null, textArea, "Color Map", JOptionPane.INFORMATION_MESSAGE);
     }
 
+    /**
+     * Create the Info section of a lve file: one line per entry, listing its cells as (x,y) from the bottom-left
+     * Notice : the cells of unknown color are reported on the error stream
+     * @param image (LayerImage): the image (may be null)
+     * @return (Array of String): the lines, null if the image or its behavior is null
+     */
     public static String[] createMap(LayerImage image){
 
         if(image == null || image.behavior == null)
             return null;
 
         ColorMap[] keys = ColorMap.values();
-        String[] cellMaps = new String[keys.length];
-
+        StringBuilder[] entries = buildEntries(buildGrid(image), false);
+        String[] lines = new String[keys.length];
         for(int i = 0; i < keys.length; i++)
-            cellMaps[i] = keys[i].label + ": ";
+            lines[i] = keys[i].label + ": " + entries[i];
+        return lines;
+    }
 
-        for(int r = 0; r < image.cellHeight; r++)
-        for(int c = 0; c < image.cellWidth; c++) {
-            for(int i = 0; i < keys.length; i++) {
-                if(keys[i].intValue == image.behavior.getRGB(c, r))
-                    cellMaps[i] += "("+(c)+","+(image.cellHeight-r-1)+") ";
+    /**
+     * Write the Info section of a lve file, same lines as createMap, each followed by a line separator
+     * Notice : in the run-length form, a horizontal run of cells (x1,y) ... (x2,y) is written as (x1..x2,y)
+     * @param image (LayerImage): the image (not null, with a behavior)
+     * @param out (BufferedWriter): the writer (not null)
+     * @param runLength (boolean): true to write the run-length form
+     * @throws IOException if the writer fails
+     */
+    public static void writeMap(LayerImage image, BufferedWriter out, boolean runLength) throws IOException {
 
+        ColorMap[] keys = ColorMap.values();
+        StringBuilder[] entries = buildEntries(buildGrid(image), runLength);
+        for(int i = 0; i < keys.length; i++) {
+            out.append(keys[i].label).append(": ").append(entries[i]);
+            out.newLine();
+        }
+    }
+
+    private static BehaviorGrid buildGrid(LayerImage image){
+        BehaviorGrid grid = new BehaviorGrid(image.behavior);
+        if(grid.getUnknownCount() > 0)
+            System.err.println(grid.getUnknownCount() + " cell(s) have a behavior color which is not in the color map");
+        return grid;
+    }
+
+    /**
+     * List the cells of each entry in a single pass over the grid, row by row from the top
+     * @param grid (BehaviorGrid): the behavior grid (not null)
+     * @param runLength (boolean): true to list the horizontal runs of cells as (x1..x2,y)
+     * @return (Array of StringBuilder): the cells of each entry, by ordinal, each one followed by a space
+     */
+    private static StringBuilder[] buildEntries(BehaviorGrid grid, boolean runLength){
+
+        ColorMap[] keys = ColorMap.values();
+        StringBuilder[] entries = new StringBuilder[keys.length];
+        for(int i = 0; i < keys.length; i++)
+            entries[i] = new StringBuilder();
+
+        for(int r = 0; r < grid.height; r++) {
+            String y = Integer.toString(grid.height - r - 1);
+            for(int c = 0; c < grid.width; c++) {
+                byte code = grid.getCode(c, r);
+                if(code < 0)
+                    continue;
+
+                int last = c;
+                if(runLength) {
+                    while(last + 1 < grid.width && grid.getCode(last + 1, r) == code)
+                        last++;
+                }
+                StringBuilder entry = entries[code];
+                entry.append('(').append(c);
+                if(last > c)
+                    entry.append("..").append(last);
+                entry.append(',').append(y).append(") ");
+                c = last;
             }
         }
-        return cellMaps;
+        return entries;
     }
 }
@@ -5,6 +5,7 @@ import ch.epfl.blchatel.leveleditor.LayerImage;
 import javax.swing.*;
 import java.awt.*;
 import java.io.File;
+import java.io.IOException;
 
 /**
  * Main ContentPane.
@@ -47,6 +48,7 @@ public class ContentPane extends JPanel {
 		// Define the Menu
 		menu = new Menu();
 		menu.addListener(grid.getMenuListener());
+		grid.addSaveListener(menu);
 		add(menu, BorderLayout.NORTH);
 
 		// Define the Tools
@@ -57,8 +59,21 @@ public class ContentPane extends JPanel {
 		add(tools, BorderLayout.EAST);
 	}
 
+	/** Wait for the end of the background saves */
+	public void awaitSave(){
+		grid.awaitSave();
+	}
+
 	public void initArgsDisplay(File file){
-		if(file != null)
-			grid.getMenuListener().onOpenLVE(file, LayerImage.getFromFile(file));
+		// The edits left by a former session (i.e. after a crash) come first
+		if(grid.recover())
+			return;
+		if(file != null) {
+			try {
+				grid.getMenuListener().onOpenLVE(file, LayerImage.loadFromFile(file));
+			} catch (IOException e) {
+				JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+			}
+		}
 	}
 }
\ No newline at end of file
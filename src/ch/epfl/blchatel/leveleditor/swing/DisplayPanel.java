@@ -1,6 +1,12 @@
 package ch.epfl.blchatel.leveleditor.swing;
 
+import ch.epfl.blchatel.leveleditor.FillEngine;
+import ch.epfl.blchatel.leveleditor.History;
+import ch.epfl.blchatel.leveleditor.Journal;
 import ch.epfl.blchatel.leveleditor.LayerImage;
+import ch.epfl.blchatel.leveleditor.TiledLayer;
+import ch.epfl.blchatel.leveleditor.io.PngEncoder;
+
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.MouseAdapter;
@@ -8,6 +14,10 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 
 class DisplayPanel extends JTabbedPane {
@@ -36,8 +46,32 @@ class DisplayPanel extends JTabbedPane {
 		return dImg;
 	}
 
+	/**
+	 * Take a journal file in the home directory which is not owned by another running editor
+	 * @return (File): the journal file of this editor, null if none is available (the error is printed)
+	 */
+	private static File acquireJournalFile() {
+		try {
+			return Journal.acquireFile(new File(System.getProperty("user.home")), ".leveleditor");
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/// Memory budget of the magnified pages in bytes (a quarter of the heap)
+	private final static long ZOOM_CACHE_BUDGET = Runtime.getRuntime().maxMemory() / 4;
+	/// Memory cap of the undo history in bytes (the older edits are spilled to a temporary file) and its depth
+	private final static long HISTORY_MEMORY_CAP = Runtime.getRuntime().maxMemory() / 16;
+	private final static int HISTORY_MAX_EDITS = 200;
+	/// The journal of the edits not saved yet, recovered on the next start after a crash, owned by this editor (null if
+	/// none is available, the edits being not journaled)
+	private final static File JOURNAL_FILE = acquireJournalFile();
+
 	///
 	private final GridPanel gridPanel;
+	/// The coordinates headers of the grid
+	private final Ruler columnRuler, rowRuler;
 	///
 	private int index;
 
@@ -59,7 +93,11 @@ class DisplayPanel extends JTabbedPane {
 		index = 0;
 
 		gridPanel = new GridPanel();
+		columnRuler = new Ruler(true);
+		rowRuler = new Ruler(false);
 		JScrollPane scrollGridPanel = new JScrollPane(gridPanel);
+		scrollGridPanel.setColumnHeaderView(columnRuler);
+		scrollGridPanel.setRowHeaderView(rowRuler);
 		scrollGridPanel.getVerticalScrollBar().setUnitIncrement(16);
 		// Add the three tabs
 		addTab("Background", scrollGridPanel);
@@ -88,29 +126,60 @@ class DisplayPanel extends JTabbedPane {
 	/** @return (OptionsPanel.Listener): the gridPanel as option panel listener abstraction */
 	public OptionsPanel.Listener getOptionsPanelListener(){return gridPanel;}
 
+	/**
+	 * Add a new listener of the background saves, called from the event dispatch thread
+	 * @param l (LayerImage.SaveListener): the new listener
+	 */
+	public void addSaveListener(LayerImage.SaveListener l){gridPanel.saveListeners.add(l);}
+
+	/** Wait for the end of the background saves */
+	public void awaitSave(){gridPanel.saving.join();}
+
+	/**
+	 * Offer to recover the edits left in the journal by a former session (i.e. after a crash)
+	 * @return (boolean): true if the edits are recovered and displayed
+	 */
+	public boolean recover(){return gridPanel.recover();}
+
 	/**
 	 * The GridPanel is a panel containing a grid
 	 * - the cell resolution is 16x16 pixels
 	 * - the grid contained cannot overflow the panel dimension
 	 * - so MAX_CELL and maxCellsY are defined
-	 * The GridPanel is a Menu.Listener and BrushDropList.Listener
+	 * The GridPanel is a Menu.Listener, BrushDropList.Listener, OptionsPanel.Listener, StrokeEngine.Listener,
+	 * LayerImage.SaveListener and History.Listener
 	 */
-	private class GridPanel extends JPanel implements Menu.Listener, BrushDropList.Listener, OptionsPanel.Listener {
+	private class GridPanel extends JPanel implements Menu.Listener, BrushDropList.Listener, OptionsPanel.Listener, StrokeEngine.Listener, LayerImage.SaveListener, History.Listener {
 
 		// padding left (x) and top (y) in px
 		private final static int PAD = 40;
 
-		/// Max number of cells we can put in the X and Y direction
-		private final static int MAX_CELL = 50;
+		/// Max number of cells we can put in the X and Y direction (the layers are tiled, empty cells cost no memory)
+		private final static int MAX_CELL = 1024;
 
 		/// The file to save into (may be null)
 		private File saveFile;
+		/// Flag that indicate if the Info section is saved in its compact (run-length) form
+		private boolean compactInfo;
+		/// The encoder of the saved png files
+		private PngEncoder pngEncoder;
+		/// The last background save (the saves are done one after the other) and its listeners
+		private CompletableFuture<Boolean> saving = CompletableFuture.completedFuture(true);
+		private final List<LayerImage.SaveListener> saveListeners = new LinkedList<>();
 		/// The background image behind the grid (may be null)
 		private LayerImage image;
+		/// The undo and redo edits of the image (null if there is no image)
+		private History history;
+		/// The journal of the operations since the last save (null if there is no image or if it cannot be written)
+		private Journal journal;
 		/// The brush image (may be null)
 		private LayerImage mouseBrush;
-		/// currently displayed image and brush (could be resize from image and mouseBrush)
-		private BufferedImage currentDisplayedImage, currentDisplayedBrush;
+		/// currently displayed brush (could be resize from mouseBrush)
+		private BufferedImage currentDisplayedBrush;
+		/// The magnified pages of the image's layers
+		private final ZoomCache zoomCache;
+		/// The grid pattern for the current magnifier (may be null)
+		private TexturePaint gridPaint;
 		/// boundary coordinates of the displayed image
 		private int minX, maxX, minY, maxY;
 		/// Flag that indicate if modifications happen for background, foreground and behavior image
@@ -119,9 +188,9 @@ class DisplayPanel extends JTabbedPane {
 		private int cellBrushX, cellBrushY;
 		/// The current brush's position in the grid (pixel of the bottom left corner of the cell into the display)
 		private int pixelBrushX, pixelBrushY;
-		///
-		private int lastDrawX, lastDrawY;
-		///
+		/// Batches and interpolates the brush strokes
+		private final StrokeEngine strokeEngine;
+		/// Minimal distance between two stamps of a stroke in pixel (multiple of the cell resolution)
 		private int deltaDragX, deltaDragY;
 		/// Current used tool
 		private OptionsPanel.Tool tool;
@@ -130,6 +199,9 @@ class DisplayPanel extends JTabbedPane {
 
 		private GridPanel() {
 
+			zoomCache = new ZoomCache(ZOOM_CACHE_BUDGET);
+			strokeEngine = new StrokeEngine(this, StrokeEngine.DEFAULT_FRAME_DELAY);
+
 			// Init the brush position (not in the grid)
 			cellBrushX = -1;
 			cellBrushY = -1;
@@ -148,6 +220,8 @@ class DisplayPanel extends JTabbedPane {
 			drawBackground = BrushDropList.BACKGROUND_CHECKBOX_DEFAULT;
 			drawForeground = BrushDropList.FOREGROUND_CHECKBOX_DEFAULT;
 			drawBehavior = BrushDropList.BEHAVIOR_CHECKBOX_DEFAULT;
+			compactInfo = Menu.COMPACT_INFO_DEFAULT;
+			pngEncoder = Menu.PNG_ENCODER_DEFAULT;
 
 			magnifier = 1;
 
@@ -161,13 +235,7 @@ class DisplayPanel extends JTabbedPane {
 							&& image != null && mouseBrush != null && isIn(e.getX(), e.getY())) {
 
 						updateBrushPosition(e.getX(), e.getY());
-
-						if (Math.abs(pixelBrushX - lastDrawX) >= deltaDragX * magnifier
-								|| Math.abs(pixelBrushY - lastDrawY) >= deltaDragY * magnifier) {
-							drawBrush(cellBrushX, cellBrushY - mouseBrush.cellHeight + 1);
-							lastDrawX = pixelBrushX;
-							lastDrawY = pixelBrushY;
-						}
+						strokeEngine.moveTo(cellBrushX, cellBrushY - mouseBrush.cellHeight + 1);
 					}
 				}
 
@@ -190,14 +258,19 @@ class DisplayPanel extends JTabbedPane {
 						switch (tool) {
 							case BRUSH:
 								if(mouseBrush == null) break;
-								drawBrush(cellBrushX, cellBrushY - mouseBrush.cellHeight + 1);
-								lastDrawX = pixelBrushX;
-								lastDrawY = pixelBrushY;
+								history.begin();
+								strokeEngine.begin(cellBrushX, cellBrushY - mouseBrush.cellHeight + 1,
+										deltaDragX / LayerImage.CELL_RESOLUTION, deltaDragY / LayerImage.CELL_RESOLUTION,
+										mouseBrush.cellWidth, mouseBrush.cellHeight);
 								break;
 							case FILL:
 								if(mouseBrush == null) break;
 								fillBrush(cellBrushX, cellBrushY - mouseBrush.cellHeight + 1);
 								break;
+							case BUCKET:
+								if(mouseBrush == null) break;
+								fillRegion(cellBrushX, cellBrushY - mouseBrush.cellHeight + 1, cellBrushX, cellBrushY);
+								break;
 							case ZOOM:
 								magnifier = Math.min(16, magnifier * 2);
 								computeDisplayedImage();
@@ -211,6 +284,7 @@ class DisplayPanel extends JTabbedPane {
 						switch (tool) {
 							case BRUSH:
 							case FILL:
+							case BUCKET:
 								break;
 							case ZOOM:
 								magnifier = Math.max(0.125, magnifier / 2);
@@ -223,6 +297,15 @@ class DisplayPanel extends JTabbedPane {
 						}
 					}
 				}
+
+				@Override
+				public void mouseReleased(MouseEvent e) {
+					if (SwingUtilities.isLeftMouseButton(e)) {
+						strokeEngine.end();
+						if (history != null)
+							history.commit();
+					}
+				}
 			});
 
 		}
@@ -240,51 +323,62 @@ class DisplayPanel extends JTabbedPane {
 
 		/**
 		 * Update the brush position (the bottom-left corner containing the mouse cursor)
+		 * Notice : only the old and new brush overlays are repainted, and only if the brush moved
 		 *
 		 * @param x (int) : X-position of the mouse in this GridPanel in pixel
 		 * @param y (int) : Y-position of the mouse in this GridPanel in pixel
 		 */
 		private void updateBrushPosition(int x, int y) {
-			cellBrushX = (x - PAD) / (int) (LayerImage.CELL_RESOLUTION * magnifier);
-			cellBrushY = (y - PAD) / (int) (LayerImage.CELL_RESOLUTION * magnifier);
 
-			pixelBrushX = PAD + cellBrushX * (int) (LayerImage.CELL_RESOLUTION * magnifier);
-			pixelBrushY = PAD + (cellBrushY + 1) * (int) (LayerImage.CELL_RESOLUTION * magnifier);
+			int displayedResolution = (int) (LayerImage.CELL_RESOLUTION * magnifier);
+			int newPixelBrushX = PAD + ((x - PAD) / displayedResolution) * displayedResolution;
+			int newPixelBrushY = PAD + ((y - PAD) / displayedResolution + 1) * displayedResolution;
 
-			repaint();
+			// The cursor is still in the same cell
+			if (newPixelBrushX == pixelBrushX && newPixelBrushY == pixelBrushY)
+				return;
+
+			Rectangle oldBounds = getBrushBounds();
+
+			cellBrushX = (x - PAD) / displayedResolution;
+			cellBrushY = (y - PAD) / displayedResolution;
+			pixelBrushX = newPixelBrushX;
+			pixelBrushY = newPixelBrushY;
+
+			Rectangle newBounds = getBrushBounds();
+			if (oldBounds == null && newBounds == null)
+				return;
+
+			Rectangle dirty = oldBounds == null ? newBounds : newBounds == null ? oldBounds : oldBounds.union(newBounds);
+			repaint(dirty);
+		}
+
+		/**
+		 * @return (Rectangle): the bounds of the brush overlay in pixel, null if no brush overlay is painted
+		 */
+		private Rectangle getBrushBounds() {
+
+			if (mouseBrush == null || pixelBrushX < PAD || pixelBrushY < PAD)
+				return null;
+
+			int displayedResolution = (int) (LayerImage.CELL_RESOLUTION * magnifier);
+			int w = mouseBrush.cellWidth * displayedResolution;
+			int h = mouseBrush.cellHeight * displayedResolution;
+			return new Rectangle(pixelBrushX, pixelBrushY - h, w, h);
 		}
 
 		/**
 		 * Draw the brush image at position (x, y) which is the top-left corner of the drawn image
-		 * and repaint the image
 		 * Notice : probably need to adapt the brush position form bottom-left to top-left corner before calling this
+		 * Notice : the display is not updated, see updateDisplayedImage
 		 *
 		 * @param cellX (int) : x-coordinate of the cell in the grid (for behavior)
 		 * @param cellY (int) : y-coordinate of the cell in the grid (for behavior)
 		 */
 		private void drawBrush(int cellX, int cellY) {
-			// Draw the image on to the buffered image
-
-			int pixelX = cellX * LayerImage.CELL_RESOLUTION;
-			int pixelY = cellY * LayerImage.CELL_RESOLUTION;
-
-			if (drawBackground) {
-				Graphics2D bGr = image.background.createGraphics();
-				bGr.drawImage(mouseBrush.background, pixelX, pixelY, null);
-				bGr.dispose();
-			}
-			if (drawForeground && mouseBrush.foreground != null) {
-				Graphics2D bGr = image.foreground.createGraphics();
-				bGr.drawImage(mouseBrush.foreground, pixelX, pixelY, null);
-				bGr.dispose();
-			}
-
-			if (drawBehavior) {
-				Graphics2D bGr = image.behavior.createGraphics();
-				bGr.drawImage(mouseBrush.behavior, cellX, cellY, null);
-				bGr.dispose();
-			}
-			computeDisplayedImage();
+			image.drawBrush(mouseBrush, cellX, cellY, drawBackground, drawForeground, drawBehavior);
+			if (journal != null)
+				journal.stamp(mouseBrush, cellX, cellY, drawBackground, drawForeground, drawBehavior);
 		}
 
 		/**
@@ -298,81 +392,100 @@ class DisplayPanel extends JTabbedPane {
 		 */
 		private void fillBrush(int cellX, int cellY) {
 
-			// Find the firstX, firstY, lastX and last Y coordinates
-			int firstCellX = cellX;
-			while (firstCellX > 0) {
-				firstCellX -= mouseBrush.cellWidth;
-			}
-			int firstCellY = cellY;
-			while (firstCellY > 0) {
-				firstCellY -= mouseBrush.cellHeight;
-			}
-			int lastCellX = cellX;
-			while (lastCellX < image.cellWidth) {
-				lastCellX += mouseBrush.cellWidth;
+			history.begin();
+			FillEngine.fill(image, mouseBrush, cellX, cellY, drawBackground, drawForeground, drawBehavior);
+			history.commit();
+			if (journal != null) {
+				journal.fill(mouseBrush, cellX, cellY, drawBackground, drawForeground, drawBehavior);
+				journal.commit();
 			}
-			int lastCellY = cellY;
-			while (lastCellY < image.cellHeight) {
-				lastCellY += mouseBrush.cellHeight;
-			}
-			// Draw the image on to the buffered image foreach coordinates
-			Graphics2D bGrBack = image.background.createGraphics();
-			Graphics2D bGrFore = image.foreground.createGraphics();
-			Graphics2D bGrBeha = image.behavior.createGraphics();
-			// no need of the lastCellX and lastCellY because the end condition is the same
-			for (int dcx = firstCellX; dcx < lastCellX; dcx += mouseBrush.cellWidth) {
-				int dpx = dcx * LayerImage.CELL_RESOLUTION;
-				for (int dcy = firstCellY; dcy < lastCellY; dcy += mouseBrush.cellHeight) {
-					int dpy = dcy * LayerImage.CELL_RESOLUTION;
-
-					bGrBack.drawImage(mouseBrush.background, dpx, dpy, null);
-
-					if (mouseBrush.foreground != null)
-						bGrFore.drawImage(mouseBrush.foreground, dpx, dpy, null);
-					bGrBeha.drawImage(mouseBrush.behavior, dcx, dcy, null);
-				}
-			}
-			bGrBack.dispose();
-			bGrFore.dispose();
-			bGrBeha.dispose();
+			zoomCache.clear();
 			computeDisplayedImage();
 		}
 
+		/**
+		 * Fill the region of the seed cell (the connected cells of the same behavior) with the brush image
+		 * repeated from position (x, y), which is the top-left corner of one of the drawn images, and repaint the region
+		 *
+		 * @param cellX (int) : x-coordinate of the cell in the grid where the brush is drawn
+		 * @param cellY (int) : y-coordinate of the cell in the grid where the brush is drawn
+		 * @param seedX (int) : x-coordinate of the seed cell in the grid
+		 * @param seedY (int) : y-coordinate of the seed cell in the grid
+		 */
+		private void fillRegion(int cellX, int cellY, int seedX, int seedY) {
+
+			history.begin();
+			Rectangle region = FillEngine.fillRegion(image, mouseBrush, cellX, cellY, seedX, seedY,
+					drawBackground, drawForeground, drawBehavior);
+			history.commit();
+			if (journal != null) {
+				journal.fillRegion(mouseBrush, cellX, cellY, seedX, seedY, drawBackground, drawForeground, drawBehavior);
+				journal.commit();
+			}
+			if (region != null)
+				updateDisplayedImage(region.x, region.y, region.width, region.height);
+		}
+
 
+		/**
+		 * Compute the bounds of the displayed image for the current layer and magnifier and repaint
+		 * Notice : the magnified pages are looked up in the zoom cache only when painted
+		 */
 		private void computeDisplayedImage() {
 
 			if (image == null)
 				return;
 
-			if (index == 0) {
-				currentDisplayedImage = DisplayPanel.resize(image.background, magnifier);
-			} else if (index == 1) {
-				currentDisplayedImage = DisplayPanel.resize(image.foreground, magnifier);
-			} else if (index == 2) {
-				currentDisplayedImage = DisplayPanel.resize(image.behavior, magnifier * LayerImage.CELL_RESOLUTION);
-			}
+			int displayedResolution = (int) (LayerImage.CELL_RESOLUTION * magnifier);
 
 			minX = PAD;
-			maxX = currentDisplayedImage.getWidth() + PAD;
+			maxX = image.cellWidth * displayedResolution + PAD;
 			minY = PAD;
-			maxY = currentDisplayedImage.getHeight() + PAD;
+			maxY = image.cellHeight * displayedResolution + PAD;
 
 			setGridPanelSize(maxX+PAD, maxY+PAD);
+			columnRuler.setGrid(image.cellWidth, PAD, displayedResolution, maxX + PAD);
+			rowRuler.setGrid(image.cellHeight, PAD, displayedResolution, maxY + PAD);
 
 			repaint();
 		}
 
+		/**
+		 * Update the region of the displayed image covering the given cells
+		 * and repaint only this region
+		 * Notice : the magnified pages are kept as they are outside of the region
+		 *
+		 * @param cellX (int) : x-coordinate of the top-left cell of the region
+		 * @param cellY (int) : y-coordinate of the top-left cell of the region
+		 * @param cellW (int) : width of the region in cells
+		 * @param cellH (int) : height of the region in cells
+		 */
+		private void updateDisplayedImage(int cellX, int cellY, int cellW, int cellH) {
+
+			if (image == null)
+				return;
+
+			zoomCache.update(cellX, cellY, cellW, cellH, magnifier);
+
+			int displayedResolution = (int) (LayerImage.CELL_RESOLUTION * magnifier);
+			// +1 to include the grid borders on the right and bottom sides
+			repaint(PAD + cellX * displayedResolution, PAD + cellY * displayedResolution,
+					cellW * displayedResolution + 1, cellH * displayedResolution + 1);
+		}
+
 		private void computeDisplayedBrush() {
 
 			if (mouseBrush == null)
 				return;
 
 			if (index == 0) {
-				currentDisplayedBrush = DisplayPanel.resize(mouseBrush.background, magnifier);
+				currentDisplayedBrush = DisplayPanel.resize(mouseBrush.background.toBufferedImage(), magnifier);
 			} else if (index == 1) {
-				currentDisplayedBrush = DisplayPanel.resize(mouseBrush.foreground, magnifier);
+				currentDisplayedBrush = mouseBrush.foreground == null ? null :
+						DisplayPanel.resize(mouseBrush.foreground.toBufferedImage(), magnifier);
 			} else if (index == 2) {
-				currentDisplayedBrush = DisplayPanel.resize(mouseBrush.behavior, magnifier * LayerImage.CELL_RESOLUTION);
+				// The behavior is painted as filled cells, see paintBehavior
+				currentDisplayedBrush = null;
 			}
 
 			repaint();
@@ -384,40 +497,231 @@ class DisplayPanel extends JTabbedPane {
 			// Clean the panel
 			super.paintComponent(g);
 
-			if (image != null && currentDisplayedImage != null) {
+			if (image != null) {
 
-				g.drawImage(currentDisplayedImage, PAD, PAD, null);
+				// Only the clip (i.e. the part of the panel visible into the scroll pane) needs to be painted
+				Rectangle clip = g.getClipBounds();
+				if (clip == null)
+					clip = new Rectangle(0, 0, getWidth(), getHeight());
+
+				int magnifiedWidth = maxX - minX;
+				int magnifiedHeight = maxY - minY;
+
+				// Draw only the visible part of the displayed image
+				Rectangle visible = clip.intersection(new Rectangle(PAD, PAD, magnifiedWidth, magnifiedHeight));
+				if (!visible.isEmpty()) {
+					if (index == ZoomCache.BEHAVIOR)
+						paintBehavior(g, image.behavior, PAD, PAD, visible);
+					else
+						paintLayer(g, visible);
+				}
 
 				// Draw the brush in overlay (pixelBrushX; pixelBrushY) are the bottom left corner, need to correct to the top left
-				if (currentDisplayedBrush != null && mouseBrush != null && pixelBrushX >= PAD && pixelBrushY >= PAD)
-					g.drawImage(currentDisplayedBrush, pixelBrushX, pixelBrushY - currentDisplayedBrush.getHeight(), null);
-
-				//draw the grid (all the row borders and then all the col borders)
-
-				int nCols = image.cellWidth;
-				int nRows = image.cellHeight;
-				int magnifiedWidth = currentDisplayedImage.getWidth();
-				int magnifiedHeight = currentDisplayedImage.getHeight();
-				double magnifiedResolutionX = magnifiedWidth / nCols;
-				double magnifiedResolutionY = magnifiedHeight / nRows;
-
-				for (int i = 0; i <= nRows; i++) {
-					g.drawLine(PAD, PAD + (int) (i * magnifiedResolutionY), PAD + magnifiedWidth, PAD + (int) (i * magnifiedResolutionY));
-					if(i != 0){
-						g.drawString(""+(nRows-i), PAD/2, PAD + (int) (i * magnifiedResolutionY));
-						g.drawString(""+(nRows-i), PAD + magnifiedWidth +5, PAD + (int) (i * magnifiedResolutionY));
+				if (mouseBrush != null && pixelBrushX >= PAD && pixelBrushY >= PAD) {
+					if (index == ZoomCache.BEHAVIOR) {
+						int displayedResolution = (int) (LayerImage.CELL_RESOLUTION * magnifier);
+						paintBehavior(g, mouseBrush.behavior, pixelBrushX, pixelBrushY - mouseBrush.cellHeight * displayedResolution, clip);
+					} else if (currentDisplayedBrush != null) {
+						g.drawImage(currentDisplayedBrush, pixelBrushX, pixelBrushY - currentDisplayedBrush.getHeight(), null);
+					}
+				}
+
+				paintGrid(g, clip, magnifiedWidth, magnifiedHeight);
+			}
+		}
+
+		/**
+		 * Draw the visible part of the current layer
+		 * - without magnification, the layer is drawn as it is
+		 * - otherwise the magnified pages intersecting the visible area are looked up in the zoom cache
+		 *
+		 * @param g (Graphics): the graphics to draw into (not null)
+		 * @param visible (Rectangle): the visible part of the displayed image in pixel (not null)
+		 */
+		private void paintLayer(Graphics g, Rectangle visible) {
+
+			TiledLayer layer = ZoomCache.getLayer(image, index);
+			if (layer == null)
+				return;
+
+			if (magnifier == 1.0) {
+				// Draw the visible tiles as they are
+				int firstTileX = (visible.x - PAD) / TiledLayer.TILE_SIZE;
+				int firstTileY = (visible.y - PAD) / TiledLayer.TILE_SIZE;
+				int lastTileX = (visible.x + visible.width - 1 - PAD) / TiledLayer.TILE_SIZE;
+				int lastTileY = (visible.y + visible.height - 1 - PAD) / TiledLayer.TILE_SIZE;
+				for (int tileY = firstTileY; tileY <= lastTileY; tileY++) {
+					for (int tileX = firstTileX; tileX <= lastTileX; tileX++) {
+						BufferedImage tile = layer.getTileImage(tileX, tileY);
+						if (tile != null)
+							g.drawImage(tile, PAD + tileX * TiledLayer.TILE_SIZE, PAD + tileY * TiledLayer.TILE_SIZE, null);
 					}
 				}
-				for (int j = 0; j <= nCols; j++) {
-					g.drawLine(PAD + (int) (j * magnifiedResolutionX), PAD, PAD + (int) (j * magnifiedResolutionX), PAD + magnifiedHeight);
-					if(j != nCols){
-						g.drawString(""+(j), PAD + (int) (j * magnifiedResolutionX), PAD-5);
-						g.drawString(""+(j), PAD + (int) (j * magnifiedResolutionX), PAD + PAD/2 + magnifiedHeight);
+				return;
+			}
+
+			int pageResolution = ZoomCache.getPageCells(magnifier) * (int) (LayerImage.CELL_RESOLUTION * magnifier);
+			int firstPageX = (visible.x - PAD) / pageResolution;
+			int firstPageY = (visible.y - PAD) / pageResolution;
+			int lastPageX = (visible.x + visible.width - 1 - PAD) / pageResolution;
+			int lastPageY = (visible.y + visible.height - 1 - PAD) / pageResolution;
+
+			for (int pageY = firstPageY; pageY <= lastPageY; pageY++) {
+				for (int pageX = firstPageX; pageX <= lastPageX; pageX++) {
+					BufferedImage page = zoomCache.getPage(index, magnifier, pageX, pageY);
+					if (page != null)
+						g.drawImage(page, PAD + pageX * pageResolution, PAD + pageY * pageResolution, null);
+				}
+			}
+		}
+
+		/**
+		 * Draw a behavior image as filled cells of the current magnifier, without intermediate image
+		 * Notice : the horizontal runs of cells of the same color are filled at once, transparent cells are skipped
+		 *
+		 * @param g (Graphics): the graphics to draw into (not null)
+		 * @param behavior (BufferedImage): the behavior image, one pixel per cell (not null)
+		 * @param originX (int): x-coordinate of the top-left corner of the behavior in pixel
+		 * @param originY (int): y-coordinate of the top-left corner of the behavior in pixel
+		 * @param clip (Rectangle): the area to repaint in pixel (not null)
+		 */
+		private void paintBehavior(Graphics g, BufferedImage behavior, int originX, int originY, Rectangle clip) {
+
+			int displayedResolution = (int) (LayerImage.CELL_RESOLUTION * magnifier);
+			Rectangle area = clip.intersection(new Rectangle(originX, originY,
+					behavior.getWidth() * displayedResolution, behavior.getHeight() * displayedResolution));
+			if (area.isEmpty())
+				return;
+
+			int firstCellX = (area.x - originX) / displayedResolution;
+			int firstCellY = (area.y - originY) / displayedResolution;
+			int lastCellX = (area.x + area.width - 1 - originX) / displayedResolution;
+			int lastCellY = (area.y + area.height - 1 - originY) / displayedResolution;
+
+			int n = lastCellX - firstCellX + 1;
+			int[] row = new int[n];
+			Color color = g.getColor();
+			for (int cellY = firstCellY; cellY <= lastCellY; cellY++) {
+				behavior.getRGB(firstCellX, cellY, n, 1, row, 0, n);
+				int start = 0;
+				while (start < n) {
+					int argb = row[start];
+					int end = start + 1;
+					while (end < n && row[end] == argb)
+						end++;
+					if ((argb >>> 24) != 0) {
+						if (g.getColor().getRGB() != argb)
+							g.setColor(new Color(argb, true));
+						g.fillRect(originX + (firstCellX + start) * displayedResolution, originY + cellY * displayedResolution,
+								(end - start) * displayedResolution, displayedResolution);
 					}
+					start = end;
 				}
 			}
+			g.setColor(color);
 		}
 
+		/**
+		 * Draw the grid (all the row and col borders) from the cached grid pattern
+		 * Notice : the cost only depends on the clip size, not on the number of cells
+		 *
+		 * @param g (Graphics): the graphics to draw into (not null)
+		 * @param clip (Rectangle): the area to repaint in pixel (not null)
+		 * @param magnifiedWidth (int): width of the displayed image in pixel
+		 * @param magnifiedHeight (int): height of the displayed image in pixel
+		 */
+		private void paintGrid(Graphics g, Rectangle clip, int magnifiedWidth, int magnifiedHeight) {
+
+			// +1 to include the borders on the right and bottom sides
+			Rectangle grid = clip.intersection(new Rectangle(PAD, PAD, magnifiedWidth + 1, magnifiedHeight + 1));
+			if (grid.isEmpty())
+				return;
+
+			Graphics2D g2d = (Graphics2D) g;
+			Paint paint = g2d.getPaint();
+			g2d.setPaint(getGridPaint((int) (LayerImage.CELL_RESOLUTION * magnifier)));
+			g2d.fillRect(grid.x, grid.y, grid.width, grid.height);
+			g2d.setPaint(paint);
+		}
+
+		/**
+		 * Getter for the grid pattern: a cell with its top and left borders, repeated from the grid's origin
+		 * Notice : the pattern is built once per cell resolution
+		 *
+		 * @param displayedResolution (int): side of a displayed cell in pixel
+		 * @return (TexturePaint): the grid pattern
+		 */
+		private TexturePaint getGridPaint(int displayedResolution) {
+
+			if (gridPaint == null || gridPaint.getImage().getWidth() != displayedResolution) {
+				BufferedImage cell = new BufferedImage(displayedResolution, displayedResolution, BufferedImage.TYPE_INT_ARGB);
+				Graphics2D g2d = cell.createGraphics();
+				g2d.setColor(getForeground());
+				g2d.drawLine(0, 0, displayedResolution - 1, 0);
+				g2d.drawLine(0, 0, 0, displayedResolution - 1);
+				g2d.dispose();
+				gridPaint = new TexturePaint(cell, new Rectangle(PAD, PAD, displayedResolution, displayedResolution));
+			}
+			return gridPaint;
+		}
+
+		/**
+		 * Display a new image, with an empty history and a new journal
+		 * @param file (File): the file the image is saved into (may be null)
+		 * @param lve (LayerImage): the image (not null)
+		 * @param recovery (Journal.Recovery): the recovery the image comes from, whose journal is continued (may be null)
+		 */
+		private void setImage(File file, LayerImage lve, Journal.Recovery recovery) {
+			saveFile = file;
+			strokeEngine.end();
+			if (history != null)
+				history.close();
+			this.image = lve;
+			history = new History(lve, HISTORY_MEMORY_CAP, HISTORY_MAX_EDITS);
+			history.setListener(this);
+			if (journal != null)
+				journal.close();
+			try {
+				if (JOURNAL_FILE == null)
+					journal = null;
+				else
+					journal = recovery == null ? Journal.create(JOURNAL_FILE, file, lve) : Journal.resume(JOURNAL_FILE, recovery);
+			} catch (IOException e) {
+				// The edits are not journaled
+				e.printStackTrace();
+				journal = null;
+			}
+			zoomCache.setImage(lve);
+			computeDisplayedImage();
+		}
+
+		/**
+		 * Replay the journal left by a former session and offer to recover the edits
+		 * Notice : a declined journal is kept until another image is opened
+		 * @return (boolean): true if the edits are recovered and displayed
+		 */
+		private boolean recover() {
+
+			if (JOURNAL_FILE == null)
+				return false;
+			Journal.Recovery recovery;
+			try {
+				recovery = Journal.recover(JOURNAL_FILE);
+			} catch (IOException e) {
+				JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+				return false;
+			}
+			if (recovery == null || !recovery.image.isValid(MAX_CELL, MAX_CELL))
+				return false;
+
+			String level = recovery.levelFile == null ? "a new image" : recovery.levelFile.getName();
+			int result = JOptionPane.showConfirmDialog(this, recovery.operations + " unsaved operation(s) on " + level +
+					" were found, recover them?", "Recovery", JOptionPane.YES_NO_OPTION);
+			if (result != JOptionPane.YES_OPTION)
+				return false;
+			setImage(recovery.levelFile, recovery.image, recovery);
+			return true;
+		}
 
 		/// GridPanel implements Menu.Listener
 
@@ -426,11 +730,9 @@ class DisplayPanel extends JTabbedPane {
 
 			if (!lve.isValid(MAX_CELL, MAX_CELL)) {
 				JOptionPane.showMessageDialog(this, "The image must be decomposed into cell of " +
-						LayerImage.CELL_RESOLUTION + "x" + LayerImage.CELL_RESOLUTION + " pixels (max 50x50 cells)");
+						LayerImage.CELL_RESOLUTION + "x" + LayerImage.CELL_RESOLUTION + " pixels (max " + MAX_CELL + "x" + MAX_CELL + " cells)");
 			} else {
-				saveFile = file;
-				this.image = lve;
-				computeDisplayedImage();
+				setImage(file, lve, null);
 			}
 		}
 
@@ -441,15 +743,31 @@ class DisplayPanel extends JTabbedPane {
 				JOptionPane.showMessageDialog(this, "Please enter value : max (" +
 						MAX_CELL + "x" + MAX_CELL + ")");
 			} else {
-				saveFile = null;
-				this.image = lve;
-				computeDisplayedImage();
+				setImage(null, lve, null);
 			}
 		}
 
 		@Override
 		public boolean onSaveLVE() {
-			return LayerImage.saveToFile(image, saveFile);
+			if (image == null || saveFile == null)
+				return false;
+			// The snapshot is saved in the background, the image can still be edited
+			final LayerImage snapshot = image.snapshot();
+			final File file = saveFile;
+			final boolean compact = compactInfo;
+			final PngEncoder encoder = pngEncoder;
+			final Journal savedJournal = journal;
+			final long mark = journal == null ? -1 : journal.mark();
+			saving = saving.thenCompose(previous -> LayerImage.saveInBackground(snapshot, file, compact, encoder, this))
+					.thenApply(success -> {
+						// The journal now starts from the saved file (done before the end of the save, see awaitSave)
+						if (success && savedJournal != null)
+							savedJournal.checkpoint(file, mark);
+						return success;
+					})
+					// A failed save must not prevent the next ones
+					.exceptionally(e -> false);
+			return true;
 		}
 
 		@Override
@@ -458,6 +776,58 @@ class DisplayPanel extends JTabbedPane {
 			return onSaveLVE();
 		}
 
+		@Override
+		public void onCompactInfoToggled(boolean isChecked) {
+			compactInfo = isChecked;
+		}
+
+		@Override
+		public void onPngEncoderSelected(PngEncoder encoder) {
+			pngEncoder = encoder;
+		}
+
+		@Override
+		public void onUndo() {
+			if (image == null)
+				return;
+			strokeEngine.end();
+			Rectangle changed = history.undo();
+			if (journal != null)
+				journal.commit();
+			if (changed != null)
+				updateDisplayedImage(changed.x, changed.y, changed.width, changed.height);
+		}
+
+		@Override
+		public void onRedo() {
+			if (image == null)
+				return;
+			strokeEngine.end();
+			Rectangle changed = history.redo();
+			if (journal != null)
+				journal.commit();
+			if (changed != null)
+				updateDisplayedImage(changed.x, changed.y, changed.width, changed.height);
+		}
+
+		/// GridPanel implements LayerImage.SaveListener
+
+		@Override
+		public void onSaveProgress(double progress) {
+			SwingUtilities.invokeLater(() -> {
+				for (LayerImage.SaveListener l : saveListeners)
+					l.onSaveProgress(progress);
+			});
+		}
+
+		@Override
+		public void onSaveDone(boolean success) {
+			SwingUtilities.invokeLater(() -> {
+				for (LayerImage.SaveListener l : saveListeners)
+					l.onSaveDone(success);
+			});
+		}
+
 		/// GridPanel implements BrushDropList.Listener
 
 		@Override
@@ -482,6 +852,31 @@ class DisplayPanel extends JTabbedPane {
 		}
 
 
+		/// GridPanel implements StrokeEngine.Listener
+
+		@Override
+		public void onStamp(int cellX, int cellY) {
+			if (image != null && mouseBrush != null)
+				drawBrush(cellX, cellY);
+		}
+
+		@Override
+		public void onStrokeUpdate(int cellX, int cellY, int cellW, int cellH) {
+			if (journal != null)
+				journal.commit();
+			updateDisplayedImage(cellX, cellY, cellW, cellH);
+		}
+
+
+		/// GridPanel implements History.Listener
+
+		@Override
+		public void onPatchApplied(byte[] patch) {
+			if (journal != null)
+				journal.patch(patch);
+		}
+
+
 		/// GridPanel implements OptionsPanel.Listener
 
 		@Override
@@ -2,10 +2,14 @@ package ch.epfl.blchatel.leveleditor.swing;
 
 import ch.epfl.blchatel.leveleditor.LayerImage;
 import ch.epfl.blchatel.leveleditor.LevelEditor;
+import ch.epfl.blchatel.leveleditor.io.PngEncoder;
 
 import javax.swing.*;
 import javax.swing.filechooser.FileNameExtensionFilter;
+import java.awt.Toolkit;
+import java.awt.event.KeyEvent;
 import java.io.File;
+import java.io.IOException;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -13,11 +17,23 @@ import java.util.List;
  * Extension of JMenuBar with a specific JMenu
  * - File
  *     - New
- *     - Open
+ *     - Open (a lve file, or a single lvb file)
  *     - Save As
  *     - Save
+ *     - Compact Info (run-length form of the Info section)
+ *     - Png Compression (Fast, Default or Max)
+ * - Edit
+ *     - Undo
+ *     - Redo
+ * - Help
+ * - a progress bar, shown during the background saves
+ * The Menu is a LayerImage.SaveListener (called from the event dispatch thread)
  */
-public class Menu extends JMenuBar {
+public class Menu extends JMenuBar implements LayerImage.SaveListener {
+
+    /// Default options values
+    public final static boolean COMPACT_INFO_DEFAULT = false;
+    public final static PngEncoder PNG_ENCODER_DEFAULT = PngEncoder.DEFAULT;
 
     /// Listener interface to react to menu selection
 	public interface Listener{
@@ -34,18 +50,35 @@ public class Menu extends JMenuBar {
 		void onNewLVE(LayerImage lve);
         /**
          * React to a save request of the current LayeredImage
-         * @return (boolean): true if the save succeed, false otherwise
+         * Notice : the save may go on in the background, its progress and end being reported to the Menu
+         * @return (boolean): true if the save succeed or is started, false otherwise
          */
 		boolean onSaveLVE();
         /**
          * React to a save request of the current image to the given file
          * @param file (File): the file to save into
-         * @return (boolean): true if the save succeed, false otherwise
+         * @return (boolean): true if the save succeed or is started, false otherwise
          */
 		boolean onSaveAsLVE(File file);
+        /**
+         * React when the form of the saved Info section change
+         * @param isChecked (boolean): true for the compact (run-length) form
+         */
+		void onCompactInfoToggled(boolean isChecked);
+        /**
+         * React when the encoder of the saved png files change
+         * @param encoder (PngEncoder): the new encoder
+         */
+		void onPngEncoderSelected(PngEncoder encoder);
+        /** React to an undo request of the last edit of the current LayeredImage */
+		void onUndo();
+        /** React to a redo request of the last undone edit of the current LayeredImage */
+		void onRedo();
 	}
 	/// List of listeners
 	private final List<Listener> listeners;
+	/// The progress of the current save (hidden if there is none)
+	private final JProgressBar saveProgressBar;
     /**
      * Add a new Listener to the listeners list
      * @param l (Listener): the new Listener
@@ -94,7 +127,7 @@ public class Menu extends JMenuBar {
 		openFileItem.addActionListener(e -> {
             File workingDirectory = new File(System.getProperty("user.dir"));
             final JFileChooser chooser = new JFileChooser(workingDirectory);
-            final FileNameExtensionFilter filter = new FileNameExtensionFilter("Level Editor Files", "lve");
+            final FileNameExtensionFilter filter = new FileNameExtensionFilter("Level Editor Files", "lve", "lvb");
             chooser.setFileFilter(filter);
             chooser.setAcceptAllFileFilterUsed(false);
             int returnVal = chooser.showOpenDialog(fileMenu);
@@ -102,8 +135,15 @@ public class Menu extends JMenuBar {
 
                 File file = chooser.getSelectedFile();
 
+                LayerImage lve;
+                try {
+                    lve = LayerImage.loadFromFile(file);
+                } catch (IOException ex) {
+                    JOptionPane.showMessageDialog(null, ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
                 for(Listener l : listeners){
-                    l.onOpenLVE(file, LayerImage.getFromFile(file));
+                    l.onOpenLVE(file, lve);
                 }
             }
         });
@@ -116,7 +156,7 @@ public class Menu extends JMenuBar {
                 if(!l.onSaveLVE()){
                     File workingDirectory = new File(System.getProperty("user.dir"));
                     final JFileChooser chooser = new JFileChooser(workingDirectory);
-                    final FileNameExtensionFilter filter = new FileNameExtensionFilter("Level Editor Images", "lve");
+                    final FileNameExtensionFilter filter = new FileNameExtensionFilter("Level Editor Images", "lve", "lvb");
                     chooser.setFileFilter(filter);
                     chooser.setAcceptAllFileFilterUsed(false);
                     int returnVal = chooser.showSaveDialog(fileMenu);
@@ -134,7 +174,7 @@ public class Menu extends JMenuBar {
 		saveAsFileItem.addActionListener(e -> {
             File workingDirectory = new File(System.getProperty("user.dir"));
             final JFileChooser chooser = new JFileChooser(workingDirectory);
-            FileNameExtensionFilter filter = new FileNameExtensionFilter("Level Editor Images", "lve");
+            FileNameExtensionFilter filter = new FileNameExtensionFilter("Level Editor Images", "lve", "lvb");
             chooser.setFileFilter(filter);
             chooser.setAcceptAllFileFilterUsed(false);
             int returnVal = chooser.showSaveDialog(fileMenu);
@@ -147,9 +187,63 @@ public class Menu extends JMenuBar {
         });
 		fileMenu.add(saveAsFileItem);
 
+		// - Compact Info Item
+		final JCheckBoxMenuItem compactInfoItem = new JCheckBoxMenuItem("Compact Info", COMPACT_INFO_DEFAULT);
+		compactInfoItem.addActionListener(e -> {
+            for(Listener l : listeners){
+                l.onCompactInfoToggled(compactInfoItem.isSelected());
+            }
+        });
+		fileMenu.add(compactInfoItem);
+
+		// - Png Compression Items
+		final JMenu compressionMenu = new JMenu("Png Compression");
+		final ButtonGroup compressionGroup = new ButtonGroup();
+		final String[] compressionNames = {"Fast", "Default", "Max"};
+		final PngEncoder[] encoders = {PngEncoder.FAST, PngEncoder.DEFAULT, PngEncoder.MAX_COMPRESSION};
+		for(int i = 0; i < encoders.length; i++){
+			final PngEncoder encoder = encoders[i];
+			JRadioButtonMenuItem compressionItem = new JRadioButtonMenuItem(compressionNames[i], encoder == PNG_ENCODER_DEFAULT);
+			compressionItem.addActionListener(e -> {
+				for(Listener l : listeners){
+					l.onPngEncoderSelected(encoder);
+				}
+			});
+			compressionGroup.add(compressionItem);
+			compressionMenu.add(compressionItem);
+		}
+		fileMenu.add(compressionMenu);
+
 		add(fileMenu);
 
 
+		// Edit Menu
+		final JMenu editMenu = new JMenu("Edit");
+		int shortcutMask = Toolkit.getDefaultToolkit().getMenuShortcutKeyMask();
+
+		// - Undo Item
+		JMenuItem undoItem = new JMenuItem("Undo");
+		undoItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Z, shortcutMask));
+		undoItem.addActionListener(e -> {
+            for(Listener l : listeners){
+                l.onUndo();
+            }
+        });
+		editMenu.add(undoItem);
+
+		// - Redo Item
+		JMenuItem redoItem = new JMenuItem("Redo");
+		redoItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_Y, shortcutMask));
+		redoItem.addActionListener(e -> {
+            for(Listener l : listeners){
+                l.onRedo();
+            }
+        });
+		editMenu.add(redoItem);
+
+		add(editMenu);
+
+
 		final JMenu helpMenu = new JMenu("Help");
 
 		JMenuItem aboutHelpItem = new JMenuItem("About");
@@ -161,5 +255,30 @@ public class Menu extends JMenuBar {
         helpMenu.add(colorMapHelpItem);
 
         add(helpMenu);
+
+		// Save progress, on the right
+		add(Box.createHorizontalGlue());
+		saveProgressBar = new JProgressBar(0, 100);
+		saveProgressBar.setStringPainted(true);
+		saveProgressBar.setString("Saving");
+		saveProgressBar.setMaximumSize(saveProgressBar.getPreferredSize());
+		saveProgressBar.setVisible(false);
+		add(saveProgressBar);
+	}
+
+	/// Menu implements LayerImage.SaveListener
+
+	@Override
+	public void onSaveProgress(double progress) {
+		saveProgressBar.setVisible(true);
+		saveProgressBar.setValue((int) Math.round(progress * 100));
+	}
+
+	@Override
+	public void onSaveDone(boolean success) {
+		saveProgressBar.setVisible(false);
+		saveProgressBar.setValue(0);
+		if(!success)
+			JOptionPane.showMessageDialog(null,"the save fails", "Error", JOptionPane.ERROR_MESSAGE);
 	}
 }
@@ -1,9 +1,8 @@
 package ch.epfl.blchatel.leveleditor.swing;
 
 import ch.epfl.blchatel.leveleditor.LayerImage;
-import ch.epfl.blchatel.leveleditor.io.DefaultFileSystem;
+import ch.epfl.blchatel.leveleditor.io.CachingFileSystem;
 import ch.epfl.blchatel.leveleditor.io.FileSystem;
-import ch.epfl.blchatel.leveleditor.io.ResourceFileSystem;
 
 import javax.swing.*;
 import java.awt.*;
@@ -61,12 +60,13 @@ class OptionsPanel extends JPanel {
         NONE("icons/none_32.png"),
         BRUSH("icons/paint_32.png"),
         FILL("icons/fill_32.png"),
+        BUCKET("icons/bucket_32.png"),
         ZOOM("icons/zoom_32.png");
 
         private final ImageIcon icon;
 
         Tool(String iconPath){
-            FileSystem fileSystem = new ResourceFileSystem(DefaultFileSystem.INSTANCE);
+            FileSystem fileSystem = CachingFileSystem.RESOURCES;
             icon = new ImageIcon(fileSystem.readImage(iconPath));
         }
 
@@ -135,9 +135,10 @@ class OptionsPanel extends JPanel {
 
         toolPanel.add(tools.add(Tool.BRUSH, true));
         toolPanel.add(tools.add(Tool.FILL));
+        toolPanel.add(tools.add(Tool.BUCKET));
         toolPanel.add(tools.add(Tool.ZOOM));
 
-        for(int i = 0; i < 21; i++){
+        for(int i = 0; i < 20; i++){
             toolPanel.add(tools.add(Tool.NONE, false, false));
         }
         return toolPanel;
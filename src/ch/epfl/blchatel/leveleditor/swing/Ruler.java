@@ -0,0 +1,100 @@
+package ch.epfl.blchatel.leveleditor.swing;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * The Ruler is a header of the grid showing the cell coordinates along one axis
+ * - it is meant to be the column (horizontal) or row (vertical) header of the grid's scroll pane
+ * - the vertical coordinates start from the bottom of the grid (the (0, 0) cell is the bottom-left one)
+ * - the labels are built once per level size and only the ones intersecting the clip are painted
+ * - when the cells are too small, only one label every few cells is painted
+ */
+class Ruler extends JComponent {
+
+    /// Thickness of the ruler in pixel
+    private final static int THICKNESS = 30;
+    /// Minimum gap between two labels in pixel
+    private final static int LABEL_GAP = 4;
+
+    /// Orientation of the ruler
+    private final boolean horizontal;
+    /// Labels of the cells (index i is the label of coordinate i)
+    private String[] labels;
+    /// Position of the first cell border in pixel
+    private int offset;
+    /// Side of a cell in pixel
+    private int cellResolution;
+
+    /**
+     * Default Ruler Constructor
+     * @param horizontal (boolean): true for a column header, false for a row header
+     */
+    Ruler(boolean horizontal) {
+        this.horizontal = horizontal;
+        this.labels = new String[0];
+        this.offset = 0;
+        this.cellResolution = 1;
+        setPreferredSize(new Dimension(THICKNESS, THICKNESS));
+    }
+
+    /**
+     * Update the grid shown by the ruler
+     * @param cells (int): number of cells along the ruler's axis
+     * @param offset (int): position of the first cell border in pixel
+     * @param cellResolution (int): side of a cell in pixel (cellResolution > 0)
+     * @param length (int): length of the ruler in pixel, i.e. the grid panel's size along the axis
+     */
+    void setGrid(int cells, int offset, int cellResolution, int length) {
+
+        if (labels.length != cells) {
+            labels = new String[cells];
+            for (int i = 0; i < cells; i++)
+                labels[i] = Integer.toString(i);
+        }
+        this.offset = offset;
+        this.cellResolution = cellResolution;
+
+        setPreferredSize(horizontal ? new Dimension(length, THICKNESS) : new Dimension(THICKNESS, length));
+        revalidate();
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+
+        super.paintComponent(g);
+
+        Rectangle clip = g.getClipBounds();
+        if (clip == null)
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+
+        int cells = labels.length;
+        if (cells == 0)
+            return;
+
+        FontMetrics metrics = g.getFontMetrics();
+        int labelSize = horizontal ? metrics.stringWidth(labels[cells - 1]) : metrics.getAscent();
+        // Paint one label every step cells so the labels do not overlap
+        int step = 1;
+        while (step * cellResolution < labelSize + LABEL_GAP)
+            step *= 2;
+
+        int clipMin = horizontal ? clip.x : clip.y;
+        int clipMax = horizontal ? clip.x + clip.width : clip.y + clip.height;
+        int first = Math.max(0, (clipMin - offset - labelSize) / cellResolution);
+        int last = Math.min(cells - 1, (clipMax - offset + labelSize) / cellResolution);
+
+        for (int i = first; i <= last; i++) {
+            if (horizontal) {
+                if (i % step == 0)
+                    g.drawString(labels[i], offset + i * cellResolution + 2, THICKNESS - 5);
+            } else {
+                // The row i from the top has the coordinate cells - 1 - i, painted on the bottom border of the row
+                int coordinate = cells - 1 - i;
+                if (coordinate % step == 0)
+                    g.drawString(labels[coordinate], 2, offset + (i + 1) * cellResolution - 2);
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package ch.epfl.blchatel.leveleditor.swing;
+
+import javax.swing.*;
+import java.util.Arrays;
+
+/**
+ * The StrokeEngine turns the mouse drags of a brush stroke into stamps
+ * - the cells between two drag events are interpolated along a line, so fast drags leave no gap
+ * - two consecutive stamps are at least (stepX, stepY) cells apart (the drag options)
+ * - the stamps are collected and applied as one batch per frame, followed by one display update
+ * All the methods are expected to be called from the event dispatch thread
+ */
+class StrokeEngine {
+
+    /// Default delay between two frames in millisecond
+    public final static int DEFAULT_FRAME_DELAY = 16;
+
+    /// Listener interface to apply the stamps
+    public interface Listener {
+        /**
+         * Stamp the brush into the layers, without updating the display
+         * @param cellX (int): x-coordinate of the top-left cell of the stamp
+         * @param cellY (int): y-coordinate of the top-left cell of the stamp
+         */
+        void onStamp(int cellX, int cellY);
+
+        /**
+         * Update the display of a region after a batch of stamps
+         * @param cellX (int): x-coordinate of the top-left cell of the region
+         * @param cellY (int): y-coordinate of the top-left cell of the region
+         * @param cellW (int): width of the region in cells
+         * @param cellH (int): height of the region in cells
+         */
+        void onStrokeUpdate(int cellX, int cellY, int cellW, int cellH);
+    }
+
+    private final Listener listener;
+    /// Fires the batches while a stroke is in progress
+    private final Timer timer;
+
+    /// Pending stamps as (x, y) pairs
+    private int[] pending;
+    private int pendingCount;
+
+    /// Minimal distance between two stamps in cells, and the brush size in cells
+    private int stepX, stepY, brushWidth, brushHeight;
+    /// Last visited cell and last stamped cell
+    private int lastX, lastY, stampX, stampY;
+    /// Indicate if a stroke is in progress
+    private boolean active;
+
+    /**
+     * Default StrokeEngine Constructor
+     * @param listener (Listener): the listener applying the stamps (not null)
+     * @param frameDelay (int): delay between two batches in millisecond
+     */
+    StrokeEngine(Listener listener, int frameDelay) {
+        if (listener == null)
+            throw new NullPointerException();
+        this.listener = listener;
+        this.pending = new int[64];
+        this.pendingCount = 0;
+        this.timer = new Timer(frameDelay, e -> flush());
+        this.active = false;
+    }
+
+    /**
+     * Start a new stroke and stamp its first cell right away
+     * @param cellX (int): x-coordinate of the top-left cell of the first stamp
+     * @param cellY (int): y-coordinate of the top-left cell of the first stamp
+     * @param stepX (int): minimal x-distance between two stamps in cells (stepX > 0)
+     * @param stepY (int): minimal y-distance between two stamps in cells (stepY > 0)
+     * @param brushWidth (int): width of the brush in cells
+     * @param brushHeight (int): height of the brush in cells
+     */
+    void begin(int cellX, int cellY, int stepX, int stepY, int brushWidth, int brushHeight) {
+
+        if (active)
+            end();
+
+        this.stepX = Math.max(1, stepX);
+        this.stepY = Math.max(1, stepY);
+        this.brushWidth = brushWidth;
+        this.brushHeight = brushHeight;
+        this.lastX = cellX;
+        this.lastY = cellY;
+        this.stampX = cellX;
+        this.stampY = cellY;
+        this.active = true;
+
+        add(cellX, cellY);
+        flush();
+        timer.start();
+    }
+
+    /**
+     * Continue the stroke to the given cell: the cells on the line from the last visited one are stamped
+     * if they are far enough from the last stamp
+     * @param cellX (int): x-coordinate of the top-left cell of the brush
+     * @param cellY (int): y-coordinate of the top-left cell of the brush
+     */
+    void moveTo(int cellX, int cellY) {
+
+        if (!active || (cellX == lastX && cellY == lastY))
+            return;
+
+        // Bresenham's line from the last visited cell (excluded) to the new one
+        int dx = Math.abs(cellX - lastX);
+        int dy = -Math.abs(cellY - lastY);
+        int sx = lastX < cellX ? 1 : -1;
+        int sy = lastY < cellY ? 1 : -1;
+        int error = dx + dy;
+        int x = lastX;
+        int y = lastY;
+
+        while (x != cellX || y != cellY) {
+            int e2 = 2 * error;
+            if (e2 >= dy) {
+                error += dy;
+                x += sx;
+            }
+            if (e2 <= dx) {
+                error += dx;
+                y += sy;
+            }
+            if (Math.abs(x - stampX) >= stepX || Math.abs(y - stampY) >= stepY) {
+                add(x, y);
+                stampX = x;
+                stampY = y;
+            }
+        }
+        lastX = cellX;
+        lastY = cellY;
+    }
+
+    /** End the current stroke: the pending stamps are applied right away */
+    void end() {
+        if (!active)
+            return;
+        timer.stop();
+        flush();
+        active = false;
+    }
+
+    /** Apply the pending stamps as one batch and update the display of their bounding region once */
+    private void flush() {
+
+        if (pendingCount == 0)
+            return;
+
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        for (int i = 0; i < pendingCount; i += 2) {
+            int x = pending[i];
+            int y = pending[i + 1];
+            listener.onStamp(x, y);
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+        pendingCount = 0;
+
+        listener.onStrokeUpdate(minX, minY, maxX - minX + brushWidth, maxY - minY + brushHeight);
+    }
+
+    private void add(int x, int y) {
+        if (pendingCount + 2 > pending.length)
+            pending = Arrays.copyOf(pending, pending.length * 2);
+        pending[pendingCount++] = x;
+        pending[pendingCount++] = y;
+    }
+}
@@ -0,0 +1,266 @@
+package ch.epfl.blchatel.leveleditor.swing;
+
+import ch.epfl.blchatel.leveleditor.LayerImage;
+import ch.epfl.blchatel.leveleditor.TiledLayer;
+
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The ZoomCache keeps the magnified versions of the tiled layers (background and foreground) of a LayerImage
+ * - the behavior layer is not cached, it is painted directly as filled cells
+ * - each layer and each magnifier (0.125, 0.25, 0.5, 1, 2, 4, 8, 16) is cut into square pages of cells
+ * - a page is rendered once, when first looked up, and then kept in sync with the edits
+ * - magnifiers lower than 1 are box filtered (mipmap), the others are pixel replicated
+ * - the least recently used pages are evicted when the cache exceeds its memory budget
+ */
+final class ZoomCache {
+
+    /// Layer indices (same order as the DisplayPanel tabs)
+    static final int BACKGROUND = 0, FOREGROUND = 1, BEHAVIOR = 2;
+
+    /// Target resolution of a page in pixel
+    private final static int PAGE_RESOLUTION = 256;
+    /// Supported magnifiers
+    private final static double MIN_MAGNIFIER = 0.125, MAX_MAGNIFIER = 16;
+
+    /// Memory budget in bytes
+    private final long budget;
+    /// The pages in access order (least recently used first)
+    private final LinkedHashMap<Long, BufferedImage> pages;
+    /// Current memory used by the pages in bytes
+    private long bytes;
+    /// The cached image (may be null)
+    private LayerImage image;
+
+    /**
+     * Default ZoomCache Constructor
+     * @param budget (long): memory budget in bytes (budget > 0)
+     */
+    ZoomCache(long budget) {
+        if (budget <= 0)
+            throw new IllegalArgumentException("budget should be positive");
+        this.budget = budget;
+        this.pages = new LinkedHashMap<>(64, 0.75f, true);
+        this.bytes = 0;
+    }
+
+    /**
+     * Change the cached image and drop all the pages
+     * @param image (LayerImage): the new image (may be null)
+     */
+    void setImage(LayerImage image) {
+        this.image = image;
+        clear();
+    }
+
+    /** Drop all the pages, i.e. when the whole image changed */
+    void clear() {
+        pages.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @param magnifier (double): the magnifier factor
+     * @return (int): the number of cells on the side of a page for the given magnifier
+     */
+    static int getPageCells(double magnifier) {
+        return Math.max(1, (int) (PAGE_RESOLUTION / (LayerImage.CELL_RESOLUTION * magnifier)));
+    }
+
+    /**
+     * @param image (LayerImage): the image (not null)
+     * @param layer (int): the layer index
+     * @return (TiledLayer): the corresponding tiled layer of the image (null for the behavior or a missing foreground)
+     */
+    static TiledLayer getLayer(LayerImage image, int layer) {
+        switch (layer) {
+            case BACKGROUND:
+                return image.background;
+            case FOREGROUND:
+                return image.foreground;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Look up a page, render it if it is not yet in the cache
+     * @param layer (int): the layer index
+     * @param magnifier (double): the magnifier factor
+     * @param pageX (int): x-coordinate of the page
+     * @param pageY (int): y-coordinate of the page
+     * @return (BufferedImage): the page (may be null if outside the image or if the layer is null)
+     */
+    BufferedImage getPage(int layer, double magnifier, int pageX, int pageY) {
+
+        if (image == null || pageX < 0 || pageY < 0)
+            return null;
+
+        Long key = key(layer, magnifier, pageX, pageY);
+        BufferedImage page = pages.get(key);
+        if (page != null)
+            return page;
+
+        TiledLayer source = getLayer(image, layer);
+        if (source == null)
+            return null;
+
+        int pageCells = getPageCells(magnifier);
+        int firstCellX = pageX * pageCells;
+        int firstCellY = pageY * pageCells;
+        int lastCellX = Math.min(image.cellWidth, firstCellX + pageCells);
+        int lastCellY = Math.min(image.cellHeight, firstCellY + pageCells);
+        if (firstCellX >= lastCellX || firstCellY >= lastCellY)
+            return null;
+
+        int displayedResolution = (int) (LayerImage.CELL_RESOLUTION * magnifier);
+        page = new BufferedImage((lastCellX - firstCellX) * displayedResolution, (lastCellY - firstCellY) * displayedResolution,
+                BufferedImage.TYPE_INT_ARGB);
+        render(page, source, displayedResolution, firstCellX, firstCellY,
+                firstCellX, firstCellY, lastCellX, lastCellY);
+
+        pages.put(key, page);
+        bytes += sizeOf(page);
+        evict();
+        return page;
+    }
+
+    /**
+     * Keep the cache in sync with an edit of the image
+     * - the pages of the given magnifier covering the region are rendered again
+     * - the pages of the other magnifiers covering the region are dropped
+     * @param cellX (int): x-coordinate of the top-left cell of the edited region
+     * @param cellY (int): y-coordinate of the top-left cell of the edited region
+     * @param cellW (int): width of the edited region in cells
+     * @param cellH (int): height of the edited region in cells
+     * @param magnifier (double): the currently displayed magnifier
+     */
+    void update(int cellX, int cellY, int cellW, int cellH, double magnifier) {
+
+        if (image == null || pages.isEmpty())
+            return;
+
+        int firstCellX = Math.max(0, cellX);
+        int firstCellY = Math.max(0, cellY);
+        int lastCellX = Math.min(image.cellWidth, cellX + cellW);
+        int lastCellY = Math.min(image.cellHeight, cellY + cellH);
+        if (firstCellX >= lastCellX || firstCellY >= lastCellY)
+            return;
+
+        for (double m = MIN_MAGNIFIER; m <= MAX_MAGNIFIER; m *= 2) {
+
+            int pageCells = getPageCells(m);
+            int displayedResolution = (int) (LayerImage.CELL_RESOLUTION * m);
+
+            for (int layer = BACKGROUND; layer <= FOREGROUND; layer++) {
+                TiledLayer source = getLayer(image, layer);
+
+                for (int pageY = firstCellY / pageCells; pageY <= (lastCellY - 1) / pageCells; pageY++)
+                for (int pageX = firstCellX / pageCells; pageX <= (lastCellX - 1) / pageCells; pageX++) {
+
+                    Long key = key(layer, m, pageX, pageY);
+                    if (m != magnifier || source == null) {
+                        BufferedImage page = pages.remove(key);
+                        if (page != null)
+                            bytes -= sizeOf(page);
+                        continue;
+                    }
+
+                    BufferedImage page = pages.get(key);
+                    if (page == null)
+                        continue;
+
+                    int originX = pageX * pageCells;
+                    int originY = pageY * pageCells;
+                    render(page, source, displayedResolution, originX, originY,
+                            Math.max(firstCellX, originX), Math.max(firstCellY, originY),
+                            Math.min(lastCellX, originX + pageCells), Math.min(lastCellY, originY + pageCells));
+                }
+            }
+        }
+    }
+
+    /** Evict the least recently used pages until the budget is respected (the most recent page is always kept) */
+    private void evict() {
+        Iterator<Map.Entry<Long, BufferedImage>> iterator = pages.entrySet().iterator();
+        while (bytes > budget && pages.size() > 1 && iterator.hasNext()) {
+            bytes -= sizeOf(iterator.next().getValue());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Render the cells [firstCellX, lastCellX[ x [firstCellY, lastCellY[ of the source into the page
+     * Notice : the page is processed row by row to keep the temporary buffers small
+     * @param page (BufferedImage): the destination page (not null)
+     * @param source (TiledLayer): the source layer (not null)
+     * @param displayedResolution (int): resolution of a cell into the page
+     * @param originX (int): x-coordinate of the top-left cell of the page
+     * @param originY (int): y-coordinate of the top-left cell of the page
+     */
+    private static void render(BufferedImage page, TiledLayer source, int displayedResolution,
+                               int originX, int originY, int firstCellX, int firstCellY, int lastCellX, int lastCellY) {
+
+        int resolution = LayerImage.CELL_RESOLUTION;
+        int sx = firstCellX * resolution;
+        int sy = firstCellY * resolution;
+        int sw = (lastCellX - firstCellX) * resolution;
+        int sh = (lastCellY - firstCellY) * resolution;
+        int dx = (firstCellX - originX) * displayedResolution;
+        int dy = (firstCellY - originY) * displayedResolution;
+        int dw = (lastCellX - firstCellX) * displayedResolution;
+
+        int[] row = new int[dw];
+
+        if (displayedResolution >= resolution) {
+            // Pixel replication, each source row gives factor rows
+            int factor = displayedResolution / resolution;
+            int[] src = new int[sw];
+            for (int y = 0; y < sh; y++) {
+                source.getRGB(sx, sy + y, sw, 1, src, 0, sw);
+                for (int x = 0, i = 0; x < sw; x++) {
+                    int argb = src[x];
+                    for (int k = 0; k < factor; k++)
+                        row[i++] = argb;
+                }
+                for (int k = 0; k < factor; k++)
+                    page.getRaster().setDataElements(dx, dy + y * factor + k, dw, 1, row);
+            }
+        } else {
+            // Box filter, each factor x factor source block gives one pixel
+            int factor = resolution / displayedResolution;
+            int n = factor * factor;
+            int[] src = new int[sw * factor];
+            for (int y = 0; y < sh / factor; y++) {
+                source.getRGB(sx, sy + y * factor, sw, factor, src, 0, sw);
+                for (int x = 0; x < dw; x++) {
+                    int a = 0, r = 0, g = 0, b = 0;
+                    for (int j = 0; j < factor; j++) {
+                        int offset = j * sw + x * factor;
+                        for (int i = 0; i < factor; i++) {
+                            int argb = src[offset + i];
+                            a += argb >>> 24;
+                            r += (argb >> 16) & 0xff;
+                            g += (argb >> 8) & 0xff;
+                            b += argb & 0xff;
+                        }
+                    }
+                    row[x] = ((a + n / 2) / n) << 24 | ((r + n / 2) / n) << 16 | ((g + n / 2) / n) << 8 | ((b + n / 2) / n);
+                }
+                page.getRaster().setDataElements(dx, dy + y, dw, 1, row);
+            }
+        }
+    }
+
+    private static long sizeOf(BufferedImage page) {
+        return 4L * page.getWidth() * page.getHeight();
+    }
+
+    private static long key(int layer, double magnifier, int pageX, int pageY) {
+        int level = Math.getExponent(magnifier) - Math.getExponent(MIN_MAGNIFIER);
+        return ((long) (layer * 8 + level) << 48) | ((long) pageY << 24) | pageX;
+    }
+}